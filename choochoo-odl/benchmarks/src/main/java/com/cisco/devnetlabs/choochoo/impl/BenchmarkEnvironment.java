@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.Collections;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainTopology;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainTopologyBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.Train;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+/**
+ * The choochoo managers wired up the way ChoochooProvider does it, but against an in memory DataBroker, a stub
+ * Onem2mService and a MockTrainController instead of ODL, IoTDM and the arduino.
+ */
+public class BenchmarkEnvironment implements AutoCloseable {
+
+    public static final String TOPIC = "devnet/track1";
+    public static final String DEFAULT_LOCO_ID = "1";
+
+    private final MockTrainController trainController;
+    private final DataBroker dataBroker;
+    private final ChoochooStatistics statistics;
+    private final ChoochooTrainManager trainManager;
+    private final ChoochooRuleManager ruleManager;
+    private final ChoochooSensorManager sensorManager;
+    private final ChoochooMqttPlugin mqttPlugin;
+
+    public BenchmarkEnvironment(int locoCount) throws Exception {
+
+        trainController = new MockTrainController();
+        trainController.setLocos(MockTrainController.locosJson(locoCount));
+        trainController.start();
+
+        dataBroker = new InMemoryDataBroker().start();
+        WriteTransaction tx = dataBroker.newWriteOnlyTransaction();
+        TrainTopology empty = new TrainTopologyBuilder().setTrain(Collections.<Train>emptyList()).build();
+        tx.put(LogicalDatastoreType.OPERATIONAL, InstanceIdentifier.create(TrainTopology.class), empty);
+        tx.submit().checkedGet();
+
+        statistics = new ChoochooStatistics(dataBroker);
+        trainManager = new ChoochooTrainManager(dataBroker, statistics);
+        ruleManager = new ChoochooRuleManager(dataBroker);
+        sensorManager = new ChoochooSensorManager(StubOnem2mService.create(), trainManager, ruleManager, statistics);
+        mqttPlugin = new ChoochooMqttPlugin(dataBroker, sensorManager, statistics);
+        // as ChoochooProvider does, so the sensor writes find their oneM2M tree
+        sensorManager.initializeDataStore();
+
+        trainManager.trainControllerChanged(new TrainTopologyBuilder()
+                .setTrainController(trainController.getAddress())
+                .setDefaultLocoId(DEFAULT_LOCO_ID)
+                .build());
+    }
+
+    public MockTrainController getTrainController() {
+        return trainController;
+    }
+
+    public DataBroker getDataBroker() {
+        return dataBroker;
+    }
+
+    public ChoochooStatistics getStatistics() {
+        return statistics;
+    }
+
+    public ChoochooTrainManager getTrainManager() {
+        return trainManager;
+    }
+
+    public ChoochooSensorManager getSensorManager() {
+        return sensorManager;
+    }
+
+    public ChoochooMqttPlugin getMqttPlugin() {
+        return mqttPlugin;
+    }
+
+    @Override
+    public void close() throws Exception {
+        mqttPlugin.close();
+        sensorManager.close();
+        ruleManager.close();
+        trainManager.close();
+        trainController.stop();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.TransportConnector;
+
+/**
+ * An in process mqtt broker, so sensor traffic can be pushed through the real paho connections without a broker on
+ * the network.  Nothing is persisted, sessions last as long as the broker does.
+ */
+public class EmbeddedMqttBroker implements AutoCloseable {
+
+    private final BrokerService broker;
+    private final TransportConnector connector;
+
+    /**
+     * @param port to listen on, 0 for any free port
+     */
+    public EmbeddedMqttBroker(int port) throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("choochoo-loadgen");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setAdvisorySupport(false);
+        connector = broker.addConnector("mqtt+nio://127.0.0.1:" + port);
+    }
+
+    public void start() throws Exception {
+        broker.start();
+        broker.waitUntilStarted();
+    }
+
+    /**
+     * @return tcp://host:port, as configured in the mqtt-broker leaf
+     */
+    public String getUri() throws Exception {
+        return "tcp://127.0.0.1:" + connector.getConnectUri().getPort();
+    }
+
+    @Override
+    public void close() throws Exception {
+        broker.stop();
+        broker.waitUntilStopped();
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.test.AbstractDataBrokerTest;
+
+/**
+ * The md-sal test DataBroker: a real in memory data store loaded with the yang models found on the classpath.
+ */
+public class InMemoryDataBroker extends AbstractDataBrokerTest {
+
+    public DataBroker start() throws Exception {
+        setup();
+        return getDataBroker();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.MqttParmsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.SensorStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.mqtt.parms.SubscriberTopics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.mqtt.parms.SubscriberTopicsBuilder;
+
+/**
+ * Drives choochoo with simulated track traffic, see TrackTrafficGenerator, to find out how much it can take.
+ *
+ *   java -cp benchmarks/target/benchmarks.jar com.cisco.devnetlabs.choochoo.impl.LoadGenerator --trains=200
+ *
+ * By default an embedded broker is started and the choochoo managers run in process against it, as in
+ * BenchmarkEnvironment, subscribed with the real paho connections.  With --broker the traffic is published to that
+ * broker instead, and with --in-process=false nothing but the traffic generator runs, eg to load a controller in
+ * karaf whose mqtt-broker is pointed at this one.
+ *
+ * Every second it prints how many messages were published, and how many choochoo accepted, throttled, dropped
+ * as malformed and threw away as its ingest queues overflowed, along with the end to end latency.  With
+ * --ramp-trains, that many more trains are added every --ramp-seconds; once choochoo is saturated the messages it
+ * accepts per second stop keeping up with those published and the overflows start.
+ */
+public class LoadGenerator {
+
+    private final CommandLineOptions options;
+
+    private LoadGenerator(CommandLineOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options;
+        try {
+            options = new CommandLineOptions(args);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+            return;
+        }
+        if (options.has("help")) {
+            usage(null);
+            return;
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("LoadGenerator [--option=value]...\n"
+                + "  --broker=tcp://host:port   publish to this broker rather than an embedded one\n"
+                + "  --port=1883                port for the embedded broker\n"
+                + "  --in-process=true          run the choochoo managers in process against the broker\n"
+                + "  --tracks=1                 tracks, each with its own connection, devnet/track1...\n"
+                + "  --trains=1                 trains to start with, spread evenly over the tracks\n"
+                + "  --ramp-trains=0            trains to add every --ramp-seconds\n"
+                + "  --ramp-seconds=10\n"
+                + "  --duration=60              seconds to run for\n"
+                + "  --min-speed=12             inches per second\n"
+                + "  --max-speed=24\n"
+                + "  --track-length=912         inches\n"
+                + "  --sensor-count=12\n"
+                + "  --jitter=0                 delay each message by up to this many ms\n"
+                + "  --duplicate-rate=0         fraction of messages published twice\n"
+                + "  --malformed-rate=0         fraction of messages replaced with a malformed one\n"
+                + "  --burst-size=0             messages a chattering sensor publishes back to back\n"
+                + "  --burst-interval=1000      ms between chattering sensors\n"
+                + "  --binary=false             publish the compact binary frames rather than json\n"
+                + "  --qos=1\n"
+                + "  --seed=1\n"
+                + "  --connection-count=1       in process: mqtt-parms connection-count\n"
+                + "  --debounce-interval=2000   in process: subscriber-topics debounce-interval");
+    }
+
+    private void run() throws Exception {
+
+        EmbeddedMqttBroker embeddedBroker = null;
+        BenchmarkEnvironment env = null;
+        TrackTrafficGenerator generator = null;
+        try {
+            String broker = options.string("broker", null);
+            if (broker == null) {
+                embeddedBroker = new EmbeddedMqttBroker((int) options.number("port", 1883));
+                embeddedBroker.start();
+                broker = embeddedBroker.getUri();
+                System.out.println("embedded broker listening on " + broker);
+            }
+
+            if (options.flag("in-process", true)) {
+                env = new BenchmarkEnvironment(1);
+                long debounceInterval = options.number("debounce-interval", ChoochooDebounceRule.DEFAULT_INTERVAL_MS);
+                SubscriberTopics topics = new SubscriberTopicsBuilder()
+                        .setTopic("devnet/#")
+                        .setDebounceInterval(debounceInterval)
+                        .build();
+                env.getMqttPlugin().mqttParmsChanged(new MqttParmsBuilder()
+                        .setMqttBroker(broker)
+                        .setClientId("choochoo-loadgen")
+                        .setConnectionCount((short) options.number("connection-count", 1))
+                        .setSubscriberTopics(Collections.singletonList(topics))
+                        .build());
+                // give the plugin's connections a moment to come up and subscribe
+                Thread.sleep(1000);
+            }
+
+            generator = new TrackTrafficGenerator(broker, "devnet/track", (int) options.number("tracks", 1),
+                    options.number("seed", 1))
+                    .setTrack(options.number("track-length", ChoochooSpeedMonitor.DEFAULT_TRACK_LENGTH_INCHES),
+                            (int) options.number("sensor-count", ChoochooSpeedMonitor.DEFAULT_SENSOR_COUNT))
+                    .setSpeed(options.fraction("min-speed", 12), options.fraction("max-speed", 24))
+                    .setJitter((int) options.number("jitter", 0))
+                    .setFaults(options.fraction("duplicate-rate", 0), options.fraction("malformed-rate", 0))
+                    .setBursts((int) options.number("burst-size", 0), options.number("burst-interval", 1000))
+                    .setBinary(options.flag("binary", false))
+                    .setQos((int) options.number("qos", 1));
+            generator.start();
+            generator.addTrains((int) options.number("trains", 1));
+
+            report(generator, env != null ? env.getStatistics() : null, options.number("duration", 60),
+                    (int) options.number("ramp-trains", 0), options.number("ramp-seconds", 10));
+        } finally {
+            if (generator != null) {
+                generator.close();
+            }
+            if (env != null) {
+                env.close();
+            }
+            if (embeddedBroker != null) {
+                embeddedBroker.close();
+            }
+        }
+    }
+
+    private static void report(TrackTrafficGenerator generator, ChoochooStatistics statistics, long durationSeconds,
+                               int rampTrains, long rampSeconds) throws InterruptedException {
+
+        System.out.println("  sec  trains  published/s  rejected/s  accepted/s  throttled/s  dropped/s"
+                + "  overflowed/s  queue  e2e-p50-us  e2e-p99-us");
+        long lastPublished = 0;
+        long lastRejected = 0;
+        long lastAccepted = 0;
+        long lastThrottled = 0;
+        long lastDropped = 0;
+        long lastOverflowed = 0;
+        long startNanos = System.nanoTime();
+        for (long second = 1; second <= durationSeconds; second++) {
+            long wakeNanos = startNanos + TimeUnit.SECONDS.toNanos(second);
+            TimeUnit.NANOSECONDS.sleep(wakeNanos - System.nanoTime());
+
+            long published = generator.getPublished();
+            long rejected = generator.getRejected();
+            long accepted = 0;
+            long throttled = 0;
+            long dropped = 0;
+            long overflowed = 0;
+            long queueDepth = 0;
+            long p50 = 0;
+            long p99 = 0;
+            if (statistics != null) {
+                SensorStatistics snapshot = statistics.snapshot();
+                accepted = snapshot.getMessagesAccepted().longValue();
+                throttled = snapshot.getMessagesThrottled().longValue();
+                dropped = snapshot.getMessagesDropped().longValue();
+                // thrown away or coalesced because the lanes were not keeping up
+                overflowed = snapshot.getMessagesOverflowed().longValue() + snapshot.getMessagesCoalesced().longValue();
+                queueDepth = snapshot.getQueueDepth();
+                ChoochooLatencyHistogram endToEnd = statistics.getHistogram(ChoochooStatistics.Stage.END_TO_END);
+                p50 = endToEnd.getPercentile(50);
+                p99 = endToEnd.getPercentile(99);
+            }
+            System.out.println(String.format("%5d  %6d  %11d  %10d  %10d  %11d  %9d  %12d  %5d  %10d  %10d",
+                    second, generator.getTrainCount(), published - lastPublished, rejected - lastRejected,
+                    accepted - lastAccepted, throttled - lastThrottled, dropped - lastDropped,
+                    overflowed - lastOverflowed, queueDepth, p50, p99));
+            lastPublished = published;
+            lastRejected = rejected;
+            lastAccepted = accepted;
+            lastThrottled = throttled;
+            lastDropped = dropped;
+            lastOverflowed = overflowed;
+
+            if (rampTrains > 0 && second % rampSeconds == 0) {
+                generator.addTrains(rampTrains);
+                if (statistics != null) {
+                    // so the latencies are for the new load only
+                    statistics.getHistogram(ChoochooStatistics.Stage.END_TO_END).reset();
+                }
+            }
+        }
+        System.out.println(String.format("published %d (%d duplicates, %d malformed, %d bursts), rejected %d",
+                generator.getPublished(), generator.getDuplicates(), generator.getMalformed(), generator.getBursts(),
+                generator.getRejected()));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+
+/**
+ * An in process stand in for the arduino train controller.  It serves GET /locos from a configurable inventory and
+ * acknowledges every POST /loco/{id} with a 200.
+ */
+public class MockTrainController extends AbstractHandler {
+
+    private final Server server;
+    private final SelectChannelConnector connector;
+    private final AtomicLong commandCount = new AtomicLong();
+    private volatile String locosJson = "[]";
+
+    public MockTrainController() {
+        server = new Server();
+        connector = new SelectChannelConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+        server.setHandler(this);
+    }
+
+    public void start() throws Exception {
+        server.start();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    /**
+     * @return host:port, as configured in the train-controller leaf
+     */
+    public String getAddress() {
+        return "127.0.0.1:" + connector.getLocalPort();
+    }
+
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    public void setLocos(String locosJson) {
+        this.locosJson = locosJson;
+    }
+
+    /**
+     * @return an inventory of count locos, named 1...count, in the format the controller returns from /locos
+     */
+    public static String locosJson(int count) {
+        StringBuilder sb = new StringBuilder(count * 12).append('[');
+        for (int i = 1; i <= count; i++) {
+            if (i > 1) sb.append(',');
+            sb.append("{\"").append(i).append("\":{}}");
+        }
+        return sb.append(']').toString();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+
+        baseRequest.setHandled(true);
+        response.setContentType("application/json");
+        if ("GET".equals(request.getMethod()) && "/locos".equals(target)) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().write(locosJson);
+        } else if ("POST".equals(request.getMethod()) && target.startsWith("/loco/")) {
+            InputStream in = request.getInputStream();
+            byte[] buffer = new byte[256];
+            while (in.read(buffer) != -1) {
+                // drain the command
+            }
+            commandCount.incrementAndGet();
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().write("{}");
+        } else {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The paho callback thread's share of the work: messageArrived() through decoding and handing off to a lane.  Paho
+ * delivers messages for a connection on one thread, so this is measured single threaded, ie per connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MqttIngestBenchmark {
+
+    private BenchmarkEnvironment env;
+    private ChoochooMqttPlugin.ConnectionHandler connectionHandler;
+    private MqttMessage[] messages;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        env = new BenchmarkEnvironment(1);
+        connectionHandler = env.getMqttPlugin().createConnectionHandler(0);
+        // one message for each of the 12 sensors, plus a train leaving a sensor
+        messages = new MqttMessage[13];
+        for (int i = 0; i < 12; i++) {
+            messages[i] = message("{\"block\":" + (i / 3 + 1) + ",\"pos\":" + (i % 3 + 1) + "}");
+        }
+        messages[12] = message("{\"block\":1,\"pos\":0}");
+    }
+
+    private static MqttMessage message(String json) {
+        return new MqttMessage(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        env.close();
+    }
+
+    @Benchmark
+    public void messageArrived() throws Exception {
+        connectionHandler.messageArrived(BenchmarkEnvironment.TOPIC, messages[next]);
+        next = next == messages.length - 1 ? 0 : next + 1;
+    }
+}
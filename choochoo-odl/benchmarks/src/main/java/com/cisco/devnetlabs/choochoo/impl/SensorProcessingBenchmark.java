@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A lane's share of the work for an accepted sensor event: processSensor() buffering the oneM2M write and issuing
+ * the horn/light command.  Sensor ids alternate so every call changes the loco's state.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SensorProcessingBenchmark {
+
+    private BenchmarkEnvironment env;
+    private ChoochooSensorManager sensorManager;
+    private int sensorId = 1;
+
+    @Setup
+    public void setup() throws Exception {
+        env = new BenchmarkEnvironment(1);
+        sensorManager = env.getSensorManager();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        env.close();
+    }
+
+    @Benchmark
+    public void processSensor() {
+        sensorManager.processSensor(BenchmarkEnvironment.TOPIC, (sensorId - 1) / 3 + 1, sensorId, System.nanoTime());
+        sensorId = sensorId == 12 ? 1 : sensorId + 1;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.controller.sal.binding.api.BindingAwareBroker.ProviderContext;
+import org.opendaylight.controller.sal.binding.api.BindingAwareBroker.RpcRegistration;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ChoochooService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.MqttParms;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.MqttParmsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.SensorStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainTopology;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainTopologyBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.mqtt.parms.SubscriberTopics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.mqtt.parms.SubscriberTopicsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.Train;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.iotdm.onem2m.rev150105.Onem2mService;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+/**
+ * Runs the whole of choochoo for hours and fails if it does worse than it did last time.
+ *
+ *   java -cp benchmarks/target/benchmarks.jar com.cisco.devnetlabs.choochoo.impl.SoakRunner --hours=4
+ *
+ * ChoochooProvider is started the way karaf would, but its session hands out an in memory DataBroker and a stub
+ * Onem2mService, and it is configured through the data store with a MockTrainController and an EmbeddedMqttBroker,
+ * which a TrackTrafficGenerator keeps busy.  After a warm up, every --sample-seconds it records the messages handled,
+ * the heap used after a gc and the live threads; at the end it takes the sustained messages per second, the
+ * sensor-to-command (end to end) latency percentiles, the heap growth per hour and how many threads were left behind
+ * once the provider was closed.
+ *
+ * These are compared with the baseline file.  A metric more than --tolerance worse than its baseline, plus a little
+ * slack for the ones that ought to be about 0, is a regression and the exit status is 1.  The first run, or a run
+ * with --record-baseline, writes the baseline file instead.  Leaks such as read transactions that are never closed
+ * show up as heap growth, executors that are never shut down as leaked threads.
+ */
+public class SoakRunner {
+
+    private enum Metric {
+        MESSAGES_PER_SECOND("messages-per-second", true, 0),
+        END_TO_END_P50_US("end-to-end-p50-us", false, 500),
+        END_TO_END_P99_US("end-to-end-p99-us", false, 1000),
+        END_TO_END_P999_US("end-to-end-p999-us", false, 5000),
+        HEAP_GROWTH_MB_PER_HOUR("heap-growth-mb-per-hour", false, 1),
+        THREAD_GROWTH("thread-growth", false, 2),
+        LEAKED_THREADS("leaked-threads", false, 0);
+
+        private final String name;
+        private final boolean higherIsBetter;
+        private final double slack;
+
+        Metric(String name, boolean higherIsBetter, double slack) {
+            this.name = name;
+            this.higherIsBetter = higherIsBetter;
+            this.slack = slack;
+        }
+
+        boolean regressed(double value, double baseline, double tolerance) {
+            return higherIsBetter ? value < baseline * (1 - tolerance) - slack
+                    : value > baseline * (1 + tolerance) + slack;
+        }
+    }
+
+    private final CommandLineOptions options;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private SoakRunner(CommandLineOptions options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options;
+        try {
+            options = new CommandLineOptions(args);
+        } catch (IllegalArgumentException e) {
+            usage(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        if (options.has("help")) {
+            usage(null);
+            return;
+        }
+        System.exit(new SoakRunner(options).run() ? 0 : 1);
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("SoakRunner [--option=value]...\n"
+                + "  --hours=4                  how long to run for, after the warm up\n"
+                + "  --warmup-minutes=5\n"
+                + "  --sample-seconds=60\n"
+                + "  --tracks=4\n"
+                + "  --trains=12                spread evenly over the tracks\n"
+                + "  --min-speed=12             inches per second\n"
+                + "  --max-speed=24\n"
+                + "  --jitter=20                delay each message by up to this many ms\n"
+                + "  --duplicate-rate=0.01\n"
+                + "  --malformed-rate=0.001\n"
+                + "  --debounce-interval=500    subscriber-topics debounce-interval\n"
+                + "  --baseline=soak-baseline.properties\n"
+                + "  --tolerance=0.2            how much worse than the baseline a metric may be\n"
+                + "  --record-baseline          write the results to the baseline file rather than checking them");
+    }
+
+    private boolean run() throws Exception {
+
+        long warmupNanos = TimeUnit.MINUTES.toNanos(options.number("warmup-minutes", 5));
+        long sampleNanos = TimeUnit.SECONDS.toNanos(options.number("sample-seconds", 60));
+        long soakNanos = (long) (options.fraction("hours", 4) * TimeUnit.HOURS.toNanos(1));
+        int trainCount = (int) options.number("trains", 12);
+
+        MockTrainController trainController = new MockTrainController();
+        trainController.setLocos(MockTrainController.locosJson(trainCount));
+        trainController.start();
+        EmbeddedMqttBroker mqttBroker = new EmbeddedMqttBroker(0);
+        mqttBroker.start();
+        DataBroker dataBroker = new InMemoryDataBroker().start();
+
+        Map<Metric, Double> results = new EnumMap<>(Metric.class);
+        int threadsBefore = liveThreads();
+        ChoochooProvider provider = new ChoochooProvider();
+        TrackTrafficGenerator generator = null;
+        try {
+            provider.onSessionInitiated(providerContext(dataBroker));
+            configure(dataBroker, trainController.getAddress(), mqttBroker.getUri());
+
+            int trackCount = (int) options.number("tracks", 4);
+            generator = new TrackTrafficGenerator(mqttBroker.getUri(), "devnet/track", trackCount,
+                    options.number("seed", 1))
+                    .setSpeed(options.fraction("min-speed", 12), options.fraction("max-speed", 24))
+                    .setJitter((int) options.number("jitter", 20))
+                    .setFaults(options.fraction("duplicate-rate", 0.01), options.fraction("malformed-rate", 0.001));
+            generator.start();
+            generator.addTrains(trainCount);
+
+            System.out.println("warming up for " + TimeUnit.NANOSECONDS.toMinutes(warmupNanos) + " minutes");
+            TimeUnit.NANOSECONDS.sleep(warmupNanos);
+            ChoochooStatistics statistics = provider.getStatistics();
+            statistics.reset();
+
+            soak(generator, statistics, soakNanos, sampleNanos, results);
+        } finally {
+            if (generator != null) {
+                generator.close();
+            }
+            provider.close();
+        }
+
+        // give the threads that were asked to stop a moment to do so
+        int leakedThreads = liveThreads() - threadsBefore;
+        for (int i = 0; i < 100 && leakedThreads > 0; i++) {
+            Thread.sleep(100);
+            leakedThreads = liveThreads() - threadsBefore;
+        }
+        results.put(Metric.LEAKED_THREADS, (double) Math.max(leakedThreads, 0));
+
+        mqttBroker.close();
+        trainController.stop();
+
+        return check(results);
+    }
+
+    private static ProviderContext providerContext(DataBroker dataBroker) {
+        ProviderContext session = mock(ProviderContext.class);
+        when(session.getSALService(DataBroker.class)).thenReturn(dataBroker);
+        when(session.getRpcService(Onem2mService.class)).thenReturn(StubOnem2mService.create());
+        @SuppressWarnings("unchecked")
+        RpcRegistration<ChoochooService> rpcReg = mock(RpcRegistration.class);
+        when(session.addRpcImplementation(eq(ChoochooService.class), any(ChoochooService.class))).thenReturn(rpcReg);
+        return session;
+    }
+
+    /**
+     * What an operator would put in the config data store, so the provider's own listeners pick it up.
+     */
+    private void configure(DataBroker dataBroker, String trainController, String mqttBroker) throws Exception {
+
+        SubscriberTopics topics = new SubscriberTopicsBuilder()
+                .setTopic("devnet/#")
+                .setDebounceInterval(options.number("debounce-interval", 500))
+                .build();
+        WriteTransaction tx = dataBroker.newWriteOnlyTransaction();
+        tx.put(LogicalDatastoreType.CONFIGURATION, InstanceIdentifier.create(MqttParms.class), new MqttParmsBuilder()
+                .setMqttBroker(mqttBroker)
+                .setClientId("choochoo-soak")
+                .setSubscriberTopics(Collections.singletonList(topics))
+                .build());
+        tx.put(LogicalDatastoreType.CONFIGURATION, InstanceIdentifier.create(TrainTopology.class),
+                new TrainTopologyBuilder()
+                        .setTrainController(trainController)
+                        .setDefaultLocoId(BenchmarkEnvironment.DEFAULT_LOCO_ID)
+                        .setTrain(Collections.<Train>emptyList())
+                        .build());
+        tx.submit().checkedGet();
+        // give the mqtt connection a moment to come up and subscribe
+        Thread.sleep(1000);
+    }
+
+    private void soak(TrackTrafficGenerator generator, ChoochooStatistics statistics, long soakNanos,
+                      long sampleNanos, Map<Metric, Double> results) throws InterruptedException {
+
+        List<double[]> heapSamples = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        int threadsAtStart = liveThreads();
+        int maxThreads = threadsAtStart;
+        long lastHandled = 0;
+        long lastPublished = generator.getPublished();
+
+        System.out.println("    min  published/s  handled/s  e2e-p99-us  heap-mb  threads");
+        for (long elapsed = sampleNanos; elapsed <= soakNanos; elapsed += sampleNanos) {
+            TimeUnit.NANOSECONDS.sleep(startNanos + elapsed - System.nanoTime());
+
+            long handled = handled(statistics.snapshot());
+            long published = generator.getPublished();
+            double heapMb = usedHeapMb();
+            int liveThreads = liveThreads();
+            maxThreads = Math.max(maxThreads, liveThreads);
+            heapSamples.add(new double[] {elapsed / 1e9 / 3600, heapMb});
+            double sampleSeconds = sampleNanos / 1e9;
+            System.out.println(String.format("%7d  %11.1f  %9.1f  %10d  %7.1f  %7d",
+                    TimeUnit.NANOSECONDS.toMinutes(elapsed), (published - lastPublished) / sampleSeconds,
+                    (handled - lastHandled) / sampleSeconds,
+                    statistics.getHistogram(ChoochooStatistics.Stage.END_TO_END).getPercentile(99), heapMb,
+                    liveThreads));
+            lastHandled = handled;
+            lastPublished = published;
+        }
+
+        double soakSeconds = (System.nanoTime() - startNanos) / 1e9;
+        ChoochooLatencyHistogram endToEnd = statistics.getHistogram(ChoochooStatistics.Stage.END_TO_END);
+        results.put(Metric.MESSAGES_PER_SECOND, handled(statistics.snapshot()) / soakSeconds);
+        results.put(Metric.END_TO_END_P50_US, (double) endToEnd.getPercentile(50));
+        results.put(Metric.END_TO_END_P99_US, (double) endToEnd.getPercentile(99));
+        results.put(Metric.END_TO_END_P999_US, (double) endToEnd.getPercentile(99.9));
+        results.put(Metric.HEAP_GROWTH_MB_PER_HOUR, Math.max(slope(heapSamples), 0));
+        results.put(Metric.THREAD_GROWTH, (double) (maxThreads - threadsAtStart));
+    }
+
+    /**
+     * @return every message choochoo has dealt with one way or another
+     */
+    private static long handled(SensorStatistics snapshot) {
+        return snapshot.getMessagesAccepted().longValue() + snapshot.getMessagesThrottled().longValue()
+                + snapshot.getMessagesDropped().longValue() + snapshot.getMessagesOverflowed().longValue()
+                + snapshot.getMessagesCoalesced().longValue();
+    }
+
+    private double usedHeapMb() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed() / (1024.0 * 1024.0);
+    }
+
+    private int liveThreads() {
+        return threads.getThreadCount();
+    }
+
+    /**
+     * Least squares slope of y over x, so one gc that happened to leave a lot behind does not look like a leak.
+     */
+    private static double slope(List<double[]> samples) {
+        int n = samples.size();
+        if (n < 2) {
+            return 0;
+        }
+        double sumX = 0;
+        double sumY = 0;
+        for (double[] sample : samples) {
+            sumX += sample[0];
+            sumY += sample[1];
+        }
+        double meanX = sumX / n;
+        double meanY = sumY / n;
+        double covariance = 0;
+        double variance = 0;
+        for (double[] sample : samples) {
+            covariance += (sample[0] - meanX) * (sample[1] - meanY);
+            variance += (sample[0] - meanX) * (sample[0] - meanX);
+        }
+        return variance == 0 ? 0 : covariance / variance;
+    }
+
+    private boolean check(Map<Metric, Double> results) throws IOException {
+
+        File baselineFile = new File(options.string("baseline", "soak-baseline.properties"));
+        double tolerance = options.fraction("tolerance", 0.2);
+        Properties baseline = new Properties();
+        if (baselineFile.exists() && !options.has("record-baseline")) {
+            try (InputStream in = new FileInputStream(baselineFile)) {
+                baseline.load(in);
+            }
+        }
+
+        boolean passed = true;
+        for (Map.Entry<Metric, Double> result : results.entrySet()) {
+            Metric metric = result.getKey();
+            String value = baseline.getProperty(metric.name);
+            if (value == null) {
+                System.out.println(String.format("%-26s %12.1f  (no baseline)", metric.name, result.getValue()));
+            } else if (metric.regressed(result.getValue(), Double.parseDouble(value), tolerance)) {
+                System.out.println(String.format("%-26s %12.1f  REGRESSED, baseline %s", metric.name,
+                        result.getValue(), value));
+                passed = false;
+            } else {
+                System.out.println(String.format("%-26s %12.1f  ok, baseline %s", metric.name, result.getValue(),
+                        value));
+            }
+        }
+
+        if (baseline.isEmpty()) {
+            Properties recorded = new Properties();
+            for (Map.Entry<Metric, Double> result : results.entrySet()) {
+                recorded.setProperty(result.getKey().name, String.valueOf(result.getValue()));
+            }
+            try (OutputStream out = new FileOutputStream(baselineFile)) {
+                recorded.store(out, "choochoo soak baseline");
+            }
+            System.out.println("recorded the baseline in " + baselineFile);
+        }
+        return passed;
+    }
+}
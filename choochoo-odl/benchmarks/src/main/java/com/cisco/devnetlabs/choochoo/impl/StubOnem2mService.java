@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import org.json.JSONObject;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.iotdm.onem2m.rev150105.Onem2mRequestPrimitiveInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.iotdm.onem2m.rev150105.Onem2mRequestPrimitiveOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.iotdm.onem2m.rev150105.Onem2mService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.iotdm.onem2m.rev150105.onem2m.primitive.list.Onem2mPrimitive;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.iotdm.onem2m.rev150105.onem2m.primitive.list.Onem2mPrimitiveBuilder;
+import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
+
+/**
+ * An Onem2mService that answers every request primitive immediately with success, so the cost measured is ours and
+ * not the oneM2M data store's.  The one answer does for every request choochoo makes: retrieving the CSE finds it
+ * already provisioned and creating a content instance reports it created.
+ */
+public final class StubOnem2mService {
+
+    // the oneM2M short names: response status code, primitive content, resource id, name, content size and content
+    private static final String RESPONSE_STATUS_CODE = "rsc";
+    private static final String CONTENT = "pc";
+    private static final String CREATED = "2001";
+
+    private StubOnem2mService() {
+    }
+
+    public static Onem2mService create() {
+        Onem2mService service = mock(Onem2mService.class);
+        String resource = new JSONObject()
+                .put("ri", "stub")
+                .put("rn", "stub")
+                .put("cs", 1)
+                .put("con", "1")
+                .toString();
+        when(service.onem2mRequestPrimitive(any(Onem2mRequestPrimitiveInput.class))).thenReturn(
+                RpcResultBuilder.success(new Onem2mRequestPrimitiveOutputBuilder()
+                        .setOnem2mPrimitive(Arrays.asList(
+                                primitive(RESPONSE_STATUS_CODE, CREATED),
+                                primitive(CONTENT, resource)))
+                        .build())
+                        .buildFuture());
+        return service;
+    }
+
+    private static Onem2mPrimitive primitive(String name, String value) {
+        return new Onem2mPrimitiveBuilder().setName(name).setValue(value).build();
+    }
+}
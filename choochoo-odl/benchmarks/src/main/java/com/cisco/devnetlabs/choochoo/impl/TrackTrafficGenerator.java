@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Simulates trains going round tracks and publishes the sensor messages the track arduinos would, eg
+ * {"block":2,"pos":1} on devnet/track1.  Each track has its own connection to the broker, like its arduino, and
+ * sensors evenly spaced around it; sensor n is block (n-1)/3+1, pos (n-1)%3+1.  Each train keeps a speed picked
+ * between the min and max speed.  With setBinary the tracks send the compact binary frame instead, see
+ * ChoochooSensorDecoder, numbering the frames per track and stamping them with the milliseconds since start.
+ *
+ * To make it harder than the real track messages can be delayed by up to the jitter, which reorders them, published
+ * twice, replaced with a malformed one, or a random sensor can chatter, publishing burst-size messages back to back.
+ *
+ * The simulation runs on a single generator thread which moves the trains on every tick by however long it has
+ * really been since the last one, so if it falls behind the messages come in bursts but the rate is still right.
+ */
+public class TrackTrafficGenerator implements AutoCloseable {
+
+    private static final long TICK_MS = 1;
+    private static final String[] MALFORMED = {
+            "",
+            "{",
+            "{\"block\":",
+            "{\"block\":2}",
+            "{\"block\":-1,\"pos\":1}",
+            "{\"block\":\"two\",\"pos\":1}",
+            "{\"block\":2,\"pos\":1,}",
+            "block=2,pos=1"};
+
+    /**
+     * Only touched on the generator thread
+     */
+    private static final class Train {
+        private final int track;
+        private final double speed;
+        private double distance;
+        private long sensorsPassed;
+
+        private Train(int track, double speed, double distance, double sensorSpacing) {
+            this.track = track;
+            this.speed = speed;
+            this.distance = distance;
+            this.sensorsPassed = (long) (distance / sensorSpacing);
+        }
+    }
+
+    private final String broker;
+    private final String topicPrefix;
+    private final int trackCount;
+    private final Random random;
+    private final ScheduledExecutorService generatorThread;
+    private final List<MqttAsyncClient> clients = new ArrayList<>();
+    private final List<Train> trains = new ArrayList<>();
+    private final byte[][] sensorMessages;
+    private final long[] sequences;
+
+    private long trackLengthInches = ChoochooSpeedMonitor.DEFAULT_TRACK_LENGTH_INCHES;
+    private int sensorCount = ChoochooSpeedMonitor.DEFAULT_SENSOR_COUNT;
+    private double minSpeed = 12;
+    private double maxSpeed = 24;
+    private boolean binary;
+    private int qos = 1;
+    private int jitterMs;
+    private double duplicateRate;
+    private double malformedRate;
+    private int burstSize;
+    private long burstIntervalMs;
+
+    private long startNanos;
+    private long lastTickNanos;
+    private long nextBurstNanos;
+    private volatile int trainCount;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong bursts = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param topicPrefix track n publishes on topicPrefix + n, counting from 1
+     * @param seed the same seed gives the same trains and the same faults
+     */
+    public TrackTrafficGenerator(String broker, String topicPrefix, int trackCount, long seed) {
+        this.broker = broker;
+        this.topicPrefix = topicPrefix;
+        this.trackCount = trackCount;
+        this.random = new Random(seed);
+        this.generatorThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("choochoo-loadgen")
+                .setDaemon(true)
+                .build());
+        this.sensorMessages = new byte[ChoochooSensorShard.MAX_SENSOR_ID + 1][];
+        for (int sensorId = 1; sensorId < sensorMessages.length; sensorId++) {
+            String json = "{\"block\":" + ((sensorId - 1) / 3 + 1) + ",\"pos\":" + ((sensorId - 1) % 3 + 1) + "}";
+            sensorMessages[sensorId] = json.getBytes(StandardCharsets.UTF_8);
+        }
+        this.sequences = new long[trackCount];
+    }
+
+    public TrackTrafficGenerator setTrack(long trackLengthInches, int sensorCount) {
+        if (sensorCount < 1 || sensorCount > ChoochooSensorShard.MAX_SENSOR_ID) {
+            throw new IllegalArgumentException("sensorCount must be 1.." + ChoochooSensorShard.MAX_SENSOR_ID);
+        }
+        this.trackLengthInches = trackLengthInches;
+        this.sensorCount = sensorCount;
+        return this;
+    }
+
+    /**
+     * @param minSpeed inches per second
+     * @param maxSpeed inches per second
+     */
+    public TrackTrafficGenerator setSpeed(double minSpeed, double maxSpeed) {
+        this.minSpeed = minSpeed;
+        this.maxSpeed = Math.max(minSpeed, maxSpeed);
+        return this;
+    }
+
+    public TrackTrafficGenerator setBinary(boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    public TrackTrafficGenerator setQos(int qos) {
+        this.qos = qos;
+        return this;
+    }
+
+    public TrackTrafficGenerator setJitter(int jitterMs) {
+        this.jitterMs = jitterMs;
+        return this;
+    }
+
+    /**
+     * @param duplicateRate fraction of the messages published twice
+     * @param malformedRate fraction of the messages replaced with a malformed one
+     */
+    public TrackTrafficGenerator setFaults(double duplicateRate, double malformedRate) {
+        this.duplicateRate = duplicateRate;
+        this.malformedRate = malformedRate;
+        return this;
+    }
+
+    /**
+     * Every burstIntervalMs a random sensor publishes burstSize messages back to back.  A size of 0 turns bursts off.
+     */
+    public TrackTrafficGenerator setBursts(int burstSize, long burstIntervalMs) {
+        this.burstSize = burstSize;
+        this.burstIntervalMs = burstIntervalMs;
+        return this;
+    }
+
+    public String getTopic(int track) {
+        return topicPrefix + (track + 1);
+    }
+
+    /**
+     * Connect each track to the broker and start the trains moving.
+     */
+    public void start() throws MqttException {
+        for (int track = 0; track < trackCount; track++) {
+            MqttAsyncClient client = new MqttAsyncClient(broker, "choochoo-loadgen-track" + (track + 1),
+                    new MemoryPersistence());
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            // a publish beyond this is counted as rejected rather than waiting, see publish()
+            options.setMaxInflight(65535);
+            client.connect(options).waitForCompletion();
+            clients.add(client);
+        }
+        generatorThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                startNanos = System.nanoTime();
+                lastTickNanos = startNanos;
+                nextBurstNanos = lastTickNanos + TimeUnit.MILLISECONDS.toNanos(burstIntervalMs);
+            }
+        });
+        generatorThread.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Put count more trains on the tracks, spread evenly over them, each somewhere random on its track.
+     */
+    public void addTrains(final int count) {
+        generatorThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                double sensorSpacing = (double) trackLengthInches / sensorCount;
+                for (int i = 0; i < count; i++) {
+                    double speed = minSpeed + random.nextDouble() * (maxSpeed - minSpeed);
+                    trains.add(new Train(trains.size() % trackCount, speed,
+                            random.nextDouble() * trackLengthInches, sensorSpacing));
+                }
+                trainCount = trains.size();
+            }
+        });
+    }
+
+    public int getTrainCount() {
+        return trainCount;
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getMalformed() {
+        return malformed.get();
+    }
+
+    public long getBursts() {
+        return bursts.get();
+    }
+
+    /**
+     * @return publishes paho refused, because too many were in flight or the connection was down
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() throws Exception {
+        generatorThread.shutdownNow();
+        generatorThread.awaitTermination(1, TimeUnit.SECONDS);
+        for (MqttAsyncClient client : clients) {
+            if (client.isConnected()) {
+                client.disconnect().waitForCompletion(1000);
+            }
+            client.close();
+        }
+    }
+
+    private void tick() {
+
+        long now = System.nanoTime();
+        double seconds = (now - lastTickNanos) / 1e9;
+        lastTickNanos = now;
+
+        double sensorSpacing = (double) trackLengthInches / sensorCount;
+        for (Train train : trains) {
+            train.distance += train.speed * seconds;
+            long sensorsPassed = (long) (train.distance / sensorSpacing);
+            while (train.sensorsPassed < sensorsPassed) {
+                train.sensorsPassed++;
+                sensorTripped(train.track, (int) (train.sensorsPassed % sensorCount) + 1);
+            }
+        }
+
+        if (burstSize > 0 && now - nextBurstNanos >= 0) {
+            nextBurstNanos += TimeUnit.MILLISECONDS.toNanos(burstIntervalMs);
+            int track = random.nextInt(trackCount);
+            int sensorId = random.nextInt(sensorCount) + 1;
+            for (int i = 0; i < burstSize; i++) {
+                publish(track, sensorMessage(track, sensorId));
+            }
+            bursts.incrementAndGet();
+        }
+    }
+
+    private void sensorTripped(final int track, int sensorId) {
+
+        byte[] message = sensorMessage(track, sensorId);
+        if (malformedRate > 0 && random.nextDouble() < malformedRate) {
+            message = MALFORMED[random.nextInt(MALFORMED.length)].getBytes(StandardCharsets.UTF_8);
+            malformed.incrementAndGet();
+        }
+        final int copies = duplicateRate > 0 && random.nextDouble() < duplicateRate ? 2 : 1;
+        duplicates.addAndGet(copies - 1);
+
+        if (jitterMs > 0) {
+            final byte[] delayedMessage = message;
+            generatorThread.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < copies; i++) {
+                        publish(track, delayedMessage);
+                    }
+                }
+            }, random.nextInt(jitterMs + 1), TimeUnit.MILLISECONDS);
+        } else {
+            for (int i = 0; i < copies; i++) {
+                publish(track, message);
+            }
+        }
+    }
+
+    private byte[] sensorMessage(int track, int sensorId) {
+        if (!binary) {
+            return sensorMessages[sensorId];
+        }
+        // the device's counter and clock are 32 bits, the decoder reads them back unsigned
+        long deviceTimestamp = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) & 0xffffffffL;
+        return ChoochooSensorDecoder.encodeBinary((sensorId - 1) / 3 + 1, (sensorId - 1) % 3 + 1,
+                sequences[track]++ & 0xffffffffL, deviceTimestamp);
+    }
+
+    private void publish(int track, byte[] message) {
+        try {
+            clients.get(track).publish(getTopic(track), message, qos, false);
+            published.incrementAndGet();
+        } catch (MqttException e) {
+            rejected.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip of a control command to the (mock) train controller, from sendControlCommandToServer() to the
+ * acknowledgement.  Run with several threads to see how commands to one controller share its connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Threads(4)
+@Fork(1)
+public class TrainControlBenchmark {
+
+    private static final String COMMAND = "{\"bell\":\"on\",\"headlight\":\"off\"}";
+
+    private BenchmarkEnvironment env;
+    private ChoochooTrainManager trainManager;
+
+    @Setup
+    public void setup() throws Exception {
+        env = new BenchmarkEnvironment(1);
+        trainManager = env.getTrainManager();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        env.close();
+    }
+
+    @Benchmark
+    public Boolean sendControlCommandToServer() throws Exception {
+        return trainManager.sendControlCommandToServer(BenchmarkEnvironment.DEFAULT_LOCO_ID, COMMAND).get();
+    }
+}
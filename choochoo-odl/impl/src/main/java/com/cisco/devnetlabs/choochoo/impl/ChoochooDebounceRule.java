@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often a sensor on the topics matching an mqtt topic filter may fire: a burst of events, then one every
+ * interval.  See ChoochooSensorShard.
+ */
+final class ChoochooDebounceRule {
+
+    static final long DEFAULT_INTERVAL_MS = 2000;
+    static final int DEFAULT_BURST = 1;
+    static final ChoochooDebounceRule DEFAULT = new ChoochooDebounceRule("#", DEFAULT_INTERVAL_MS, DEFAULT_BURST);
+
+    private final String topicFilter;
+    private final long intervalNanos;
+    private final int burst;
+
+    ChoochooDebounceRule(String topicFilter, long intervalMs, int burst) {
+        this.topicFilter = topicFilter;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.burst = Math.max(1, burst);
+    }
+
+    String getTopicFilter() {
+        return topicFilter;
+    }
+
+    long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    int getBurst() {
+        return burst;
+    }
+
+    /**
+     * mqtt topic filter matching: + matches one level, # matches any number of levels at the end
+     */
+    static boolean topicMatches(String filter, String topic) {
+
+        int f = 0;
+        int t = 0;
+        while (f < filter.length()) {
+            char c = filter.charAt(f);
+            if (c == '#') {
+                return true;
+            }
+            if (c == '+') {
+                while (t < topic.length() && topic.charAt(t) != '/') {
+                    t++;
+                }
+                f++;
+                continue;
+            }
+            if (t >= topic.length()) {
+                // "a/#" also matches "a"
+                return filter.regionMatches(f, "/#", 0, 2) && f + 2 == filter.length();
+            }
+            if (c != topic.charAt(t)) {
+                return false;
+            }
+            f++;
+            t++;
+        }
+        return t == topic.length();
+    }
+}
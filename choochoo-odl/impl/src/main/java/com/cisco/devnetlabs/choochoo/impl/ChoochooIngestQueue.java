@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock free queue between the paho threads and a sensor lane.  It is an array ring where every slot
+ * carries a sequence number saying whose turn it is: a producer may fill slot i on its pos'th lap when the sequence is
+ * pos, a consumer may empty it when the sequence is pos + 1.  Producers and consumers each claim a position with one
+ * CAS and never wait for each other, so a full queue is reported straight away rather than blocking paho.
+ *
+ * Any thread may poll, so a producer can make room by throwing the oldest element away.
+ */
+class ChoochooIngestQueue<E> {
+
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong producerPosition = new AtomicLong();
+    private final AtomicLong consumerPosition = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of 2
+     */
+    ChoochooIngestQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        elements = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * @return false if the queue is full
+     */
+    boolean offer(E element) {
+        for (;;) {
+            long position = producerPosition.get();
+            int index = (int) position & mask;
+            long available = sequences.get(index) - position;
+            if (available == 0) {
+                if (producerPosition.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    // a volatile write, so a consumer that checks the queue before it sleeps is sure to see it
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (available < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return the oldest element or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        for (;;) {
+            long position = consumerPosition.get();
+            int index = (int) position & mask;
+            long available = sequences.get(index) - (position + 1);
+            if (available == 0) {
+                if (consumerPosition.compareAndSet(position, position + 1)) {
+                    E element = (E) elements[index];
+                    elements[index] = null;
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+            } else if (available < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements queued, only a snapshot while producers and consumers are busy
+     */
+    int size() {
+        long size = producerPosition.get() - consumerPosition.get();
+        return (int) Math.max(0, Math.min(size, elements.length));
+    }
+}
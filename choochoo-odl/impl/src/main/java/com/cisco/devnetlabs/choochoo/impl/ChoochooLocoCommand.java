@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+/**
+ * The actuator changes to make on a loco in one POST to the train controller.  A null field is left as it is.  The
+ * json body is built by hand as it only ever has these three members.
+ */
+public class ChoochooLocoCommand {
+
+    private Boolean horn;
+    private Boolean light;
+    private Integer speed;
+
+    public Boolean getHorn() {
+        return horn;
+    }
+
+    public ChoochooLocoCommand setHorn(Boolean horn) {
+        this.horn = horn;
+        return this;
+    }
+
+    public Boolean getLight() {
+        return light;
+    }
+
+    public ChoochooLocoCommand setLight(Boolean light) {
+        this.light = light;
+        return this;
+    }
+
+    public Integer getSpeed() {
+        return speed;
+    }
+
+    public ChoochooLocoCommand setSpeed(Integer speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * @return a new command doing both, where both set the same field other's value is taken
+     */
+    public ChoochooLocoCommand merge(ChoochooLocoCommand other) {
+        return new ChoochooLocoCommand()
+                .setHorn(other.horn != null ? other.horn : horn)
+                .setLight(other.light != null ? other.light : light)
+                .setSpeed(other.speed != null ? other.speed : speed);
+    }
+
+    public boolean isEmpty() {
+        return horn == null && light == null && speed == null;
+    }
+
+    /**
+     * @return the command as the train controller expects it, eg {"bell":"on","headlight":"off","speed":20}
+     */
+    public String toJsonString() {
+        StringBuilder sb = new StringBuilder(48).append('{');
+        if (horn != null) {
+            sb.append("\"bell\":\"").append(horn ? "on" : "off").append('"');
+        }
+        if (light != null) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append("\"headlight\":\"").append(light ? "on" : "off").append('"');
+        }
+        if (speed != null) {
+            if (sb.length() > 1) sb.append(',');
+            sb.append("\"speed\":").append(speed.intValue());
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJsonString();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.Objects;
+
+/**
+ * What we believe the horn, light and speed of one loco to be.  Null means unknown.
+ *
+ * Values are recorded optimistically, as soon as the command setting them is sent rather than when the controller
+ * acknowledges it, so the same change arriving again while the first POST is still in flight is suppressed instead
+ * of being sent twice.  If the controller does not acknowledge the command the values are forgotten again, so the
+ * next command for them is sent rather than suppressed.
+ */
+class ChoochooLocoState {
+
+    private Boolean horn;
+    private Boolean light;
+    private Integer speed;
+
+    /**
+     * Strip out anything the loco is already doing, or has already been told to do, and record the rest as sent.
+     * @return the changes that still need to go to the controller, possibly empty
+     */
+    synchronized ChoochooLocoCommand update(ChoochooLocoCommand command) {
+
+        ChoochooLocoCommand delta = new ChoochooLocoCommand();
+        if (command.getHorn() != null && !command.getHorn().equals(horn)) {
+            delta.setHorn(command.getHorn());
+            horn = command.getHorn();
+        }
+        if (command.getLight() != null && !command.getLight().equals(light)) {
+            delta.setLight(command.getLight());
+            light = command.getLight();
+        }
+        if (command.getSpeed() != null && !command.getSpeed().equals(speed)) {
+            delta.setSpeed(command.getSpeed());
+            speed = command.getSpeed();
+        }
+        return delta;
+    }
+
+    /**
+     * The controller did not acknowledge delta; forget any value that has not been changed again since.
+     */
+    synchronized void reject(ChoochooLocoCommand delta) {
+        if (delta.getHorn() != null && Objects.equals(delta.getHorn(), horn)) {
+            horn = null;
+        }
+        if (delta.getLight() != null && Objects.equals(delta.getLight(), light)) {
+            light = null;
+        }
+        if (delta.getSpeed() != null && Objects.equals(delta.getSpeed(), speed)) {
+            speed = null;
+        }
+    }
+
+    synchronized Integer getSpeed() {
+        return speed;
+    }
+}
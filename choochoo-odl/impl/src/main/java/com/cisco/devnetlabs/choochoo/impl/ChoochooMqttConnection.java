@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps one connection to the mqtt broker up and subscribed, in the background.  Connecting, reconnecting after the
+ * connection is lost, and (un)subscribing are all driven by the async paho client from a single connection thread,
+ * so neither the datastore listener thread nor the paho callback thread ever waits on the broker.
+ *
+ * The session is persistent (clean-session=false) under a stable client id, so the broker keeps queueing QoS1 sensor
+ * messages while we are disconnected and delivers them when we come back.  Failed connects are retried with
+ * exponential backoff and jitter.  After every (re)connect the whole topic list is resubscribed in one request, in
+ * case the broker lost the session.  A topic only counts as (un)subscribed once the broker has acknowledged it; a
+ * request the broker rejects or never answers is retried after SUBSCRIBE_RETRY_MS.
+ */
+public class ChoochooMqttConnection {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChoochooMqttConnection.class);
+    private static final int QOS = 1;
+    private static final long INITIAL_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 60000;
+    private static final long SUBSCRIBE_RETRY_MS = 5000;
+    // the granted qos in a SUBACK for a topic the broker refused
+    private static final int SUBSCRIBE_FAILURE = 0x80;
+
+    private final String broker;
+    private final String clientId;
+    private final MqttCallback callback;
+    private final ScheduledThreadPoolExecutor connectionThread;
+    private final Random random = new Random();
+    private final Runnable connectTask = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+    private final Runnable retrySyncTask = new Runnable() {
+        @Override
+        public void run() {
+            retryScheduled = false;
+            awaitingRetry.clear();
+            syncSubscriptions();
+        }
+    };
+
+    // only touched on the connection thread
+    private MqttAsyncClient client;
+    private Set<String> topics = new HashSet<>();
+    // acknowledged by the broker, and requested but not acknowledged yet
+    private final Set<String> subscribed = new HashSet<>();
+    private final Set<String> subscribing = new HashSet<>();
+    private final Set<String> unsubscribing = new HashSet<>();
+    // the broker refused these, they are left alone until the retry
+    private final Set<String> awaitingRetry = new HashSet<>();
+    // bumped on every connect, so acknowledgements from an earlier connection are ignored
+    private int session;
+    private boolean retryScheduled;
+    private long backoffMs = INITIAL_BACKOFF_MS;
+
+    private volatile boolean connected;
+    private volatile boolean closed;
+
+    /**
+     * @param callback is told about arriving messages and lost connections; reconnecting is taken care of here
+     */
+    public ChoochooMqttConnection(String broker, String clientId, MqttCallback callback) {
+        this.broker = broker;
+        this.clientId = clientId;
+        this.callback = callback;
+        this.connectionThread = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("choochoo-mqtt-" + clientId)
+                .setDaemon(true)
+                .build());
+        // a reconnect still waiting on its backoff is dropped by close rather than run after it
+        this.connectionThread.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    public String getBroker() {
+        return broker;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public void start() {
+        connectionThread.execute(connectTask);
+    }
+
+    /**
+     * Subscribe to exactly these topics, now if connected, otherwise as soon as the connection is up.
+     */
+    public void setTopics(Set<String> newTopics) {
+        final Set<String> topicsCopy = new HashSet<>(newTopics);
+        onConnectionThread(new Runnable() {
+            @Override
+            public void run() {
+                topics = topicsCopy;
+                syncSubscriptions();
+            }
+        });
+    }
+
+    public void close() {
+        connectionThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                closed = true;
+                connected = false;
+                if (client != null) {
+                    try {
+                        // a plain disconnect cannot stop a connect that is still in progress, and close would refuse
+                        client.disconnectForcibly(0, 1000);
+                    } catch (MqttException e) {
+                        LOG.debug("close: disconnecting from {}: {}", broker, e.toString());
+                    }
+                    try {
+                        client.close();
+                        client = null;
+                    } catch (MqttException e) {
+                        LOG.error("close: trouble closing connection to {}: {}", broker, e.toString());
+                        return;
+                    }
+                }
+                LOG.info("close: disconnected from {}", broker);
+            }
+        });
+        connectionThread.shutdown();
+        try {
+            connectionThread.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void connect() {
+
+        if (closed) {
+            return;
+        }
+        try {
+            if (client == null) {
+                client = new MqttAsyncClient(broker, clientId, new MemoryPersistence());
+                client.setCallback(new ConnectionCallback());
+            }
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(false);
+            client.connect(options, null, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken token) {
+                    onConnectionThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            onConnected();
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailure(IMqttToken token, final Throwable cause) {
+                    onConnectionThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            scheduleReconnect(cause);
+                        }
+                    });
+                }
+            });
+        } catch (MqttException e) {
+            scheduleReconnect(e);
+        }
+    }
+
+    /**
+     * Paho calls back on its own threads, which may be after close has shut the connection thread down.
+     */
+    private void onConnectionThread(Runnable task) {
+        if (closed) {
+            return;
+        }
+        try {
+            connectionThread.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("onConnectionThread: connection to {} is closed", broker);
+        }
+    }
+
+    private void onConnected() {
+        if (closed) {
+            return;
+        }
+        connected = true;
+        backoffMs = INITIAL_BACKOFF_MS;
+        LOG.info("onConnected: connected to broker: {} as {}", broker, clientId);
+        session++;
+        subscribed.clear();
+        subscribing.clear();
+        unsubscribing.clear();
+        awaitingRetry.clear();
+        syncSubscriptions();
+    }
+
+    private void scheduleReconnect(Throwable cause) {
+        connected = false;
+        if (closed) {
+            return;
+        }
+        // equal jitter: somewhere between half and all of the current backoff
+        long delayMs = backoffMs / 2 + (long) (random.nextDouble() * (backoffMs / 2));
+        LOG.error("connect: trouble connecting to {}: {}, will retry in {}ms", broker,
+                cause == null ? "connection lost" : cause.toString(), delayMs);
+        backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+        connectionThread.schedule(connectTask, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void syncSubscriptions() {
+
+        if (!connected || closed) {
+            return;
+        }
+        // anything still waiting on the broker is left alone until it answers, and anything it refused until the retry
+        Set<String> toSubscribe = new HashSet<>(topics);
+        toSubscribe.removeAll(subscribed);
+        toSubscribe.removeAll(subscribing);
+        toSubscribe.removeAll(unsubscribing);
+        toSubscribe.removeAll(awaitingRetry);
+        Set<String> toUnsubscribe = new HashSet<>(subscribed);
+        toUnsubscribe.removeAll(topics);
+        toUnsubscribe.removeAll(unsubscribing);
+        toUnsubscribe.removeAll(awaitingRetry);
+
+        if (!toSubscribe.isEmpty()) {
+            String[] topicArray = toSubscribe.toArray(new String[toSubscribe.size()]);
+            int[] qos = new int[topicArray.length];
+            Arrays.fill(qos, QOS);
+            subscribing.addAll(toSubscribe);
+            try {
+                client.subscribe(topicArray, qos, null, new SubscriptionListener(true, topicArray));
+            } catch (MqttException e) {
+                subscriptionFailed(true, toSubscribe, e);
+            }
+        }
+        if (!toUnsubscribe.isEmpty()) {
+            String[] topicArray = toUnsubscribe.toArray(new String[toUnsubscribe.size()]);
+            unsubscribing.addAll(toUnsubscribe);
+            try {
+                client.unsubscribe(topicArray, null, new SubscriptionListener(false, topicArray));
+            } catch (MqttException e) {
+                subscriptionFailed(false, toUnsubscribe, e);
+            }
+        }
+    }
+
+    private void subscriptionDone(boolean subscribe, Set<String> requested, Set<String> refused) {
+        if (!refused.isEmpty()) {
+            subscriptionFailed(subscribe, refused, null);
+        }
+        if (requested.isEmpty()) {
+            return;
+        }
+        if (subscribe) {
+            subscribing.removeAll(requested);
+            subscribed.addAll(requested);
+        } else {
+            unsubscribing.removeAll(requested);
+            subscribed.removeAll(requested);
+        }
+        LOG.info("{}: topics: {}", subscribe ? "subscribe" : "unsubscribe", requested);
+        // the topics may have changed while the broker was answering
+        syncSubscriptions();
+    }
+
+    private void subscriptionFailed(boolean subscribe, Set<String> requested, Throwable cause) {
+        if (subscribe) {
+            subscribing.removeAll(requested);
+        } else {
+            unsubscribing.removeAll(requested);
+        }
+        awaitingRetry.addAll(requested);
+        LOG.error("{}: trouble with topics: {} on {}: {}, will retry in {}ms", subscribe ? "subscribe" : "unsubscribe",
+                requested, broker, cause == null ? "refused by the broker" : cause.toString(), SUBSCRIBE_RETRY_MS);
+        if (retryScheduled || closed) {
+            return;
+        }
+        retryScheduled = true;
+        connectionThread.schedule(retrySyncTask, SUBSCRIBE_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private class ConnectionCallback implements MqttCallback {
+
+        @Override
+        public void connectionLost(final Throwable cause) {
+            connected = false;
+            onConnectionThread(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleReconnect(cause);
+                }
+            });
+            callback.connectionLost(cause);
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            callback.messageArrived(topic, message);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+            callback.deliveryComplete(token);
+        }
+    }
+
+    /**
+     * Hands the broker's answer to a (un)subscribe back to the connection thread.
+     */
+    private class SubscriptionListener implements IMqttActionListener {
+
+        private final boolean subscribe;
+        private final String[] topicArray;
+        private final int requestSession;
+
+        SubscriptionListener(boolean subscribe, String[] topicArray) {
+            this.subscribe = subscribe;
+            this.topicArray = topicArray;
+            this.requestSession = session;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken token) {
+            final Set<String> granted = new HashSet<>(Arrays.asList(topicArray));
+            final Set<String> refused = new HashSet<>();
+            int[] grantedQos = subscribe ? token.getGrantedQos() : null;
+            for (int i = 0; grantedQos != null && i < grantedQos.length && i < topicArray.length; i++) {
+                if (grantedQos[i] == SUBSCRIBE_FAILURE) {
+                    granted.remove(topicArray[i]);
+                    refused.add(topicArray[i]);
+                }
+            }
+            onConnectionThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (requestSession == session) {
+                        subscriptionDone(subscribe, granted, refused);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, final Throwable cause) {
+            final Set<String> requested = new HashSet<>(Arrays.asList(topicArray));
+            onConnectionThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (requestSession == session) {
+                        subscriptionFailed(subscribe, requested, cause);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -8,21 +8,17 @@
 
 package com.cisco.devnetlabs.choochoo.impl;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.TreeSet;
 import org.eclipse.paho.client.mqttv3.*;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
-import org.joda.time.Seconds;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.opendaylight.controller.md.sal.binding.api.*;
 import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
-import org.opendaylight.controller.md.sal.common.api.data.TransactionCommitFailedException;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.MqttParms;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.MqttParmsBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.mqtt.parms.SubscriberTopics;
@@ -32,36 +28,50 @@ import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ChoochooMqttPlugin implements MqttCallback, DataTreeChangeListener<MqttParms> {
+/**
+ * Receives the sensor messages from the mqtt broker over a pool of connections.  With a shared subscription group,
+ * every connection subscribes to every topic as $share/group/topic and the broker spreads the messages across them.
+ * Without one, the subscriber topics are dealt out between the connections and each topic's messages all arrive on
+ * the one connection, so the load only spreads if there are at least as many topics as connections and none of them
+ * is a wildcard carrying most of the traffic; with the default devnet/# every message arrives on one connection.
+ * Each connection has its own paho callback thread, and decodes on it, so ingest scales with the number of
+ * connections that are actually busy.  Which sensor lane a message goes to is chosen from its own topic, whichever
+ * connection it arrived on.
+ */
+public class ChoochooMqttPlugin implements DataTreeChangeListener<MqttParms> {
 
     private static final Logger LOG = LoggerFactory.getLogger(ChoochooMqttPlugin.class);
-    private final ExecutorService executor;
     protected ChoochooSensorManager onem2mManager;
-    protected static HashSet<String> subscriberTopicList = null;
+    private final ChoochooSensorDispatcher sensorDispatcher;
+    private final ChoochooStatistics statistics;
+    protected HashSet<String> subscriberTopicList = null;
     private String mqttBroker;
-    protected static Boolean connectedToBroker = false;
-    private MqttClient mqttClient;
+    private String mqttClientId;
+    private int connectionCount;
+    private String sharedSubscriptionGroup;
+    private List<ChoochooMqttConnection> mqttConnections = new ArrayList<>();
     private static final InstanceIdentifier<MqttParms> MQTTPARMS_IID =
             InstanceIdentifier.builder(MqttParms.class).build();
     private ListenerRegistration<ChoochooMqttPlugin> dcReg;
     private DataBroker dataBroker;
-    private DateTime saveTime = new DateTime(DateTimeZone.UTC);;
-    private Integer saveBlockId = 0;
-    private Integer savePosId = 0;
 
-    public ChoochooMqttPlugin(DataBroker dataBroker, ChoochooSensorManager onem2mManager) {
-        executor = Executors.newFixedThreadPool(1);
+    public ChoochooMqttPlugin(DataBroker dataBroker, ChoochooSensorManager onem2mManager,
+                              ChoochooStatistics statistics) {
         mqttBroker = null;
         this.dataBroker = dataBroker;
         subscriberTopicList = new HashSet();
         this.onem2mManager = onem2mManager;
-        mqttClient = null;
+        this.statistics = statistics;
+        sensorDispatcher = new ChoochooSensorDispatcher(onem2mManager, statistics);
+        statistics.setSensorDispatcher(sensorDispatcher);
         dcReg = dataBroker.registerDataTreeChangeListener(new DataTreeIdentifier<>(LogicalDatastoreType.CONFIGURATION,
                 MQTTPARMS_IID), this);
     }
 
     public void close() {
         dcReg.close();
+        disconnectFromMqttServer();
+        sensorDispatcher.close();
     }
 
     public void initializeMqttParms() {
@@ -83,43 +93,87 @@ public class ChoochooMqttPlugin implements MqttCallback, DataTreeChangeListener<
     }
 
     private void disconnectFromMqttServer() {
-        try {
-            if (mqttBroker != null && mqttClient != null) {
-                mqttClient.disconnect();
-                mqttClient = null;
-                subscriberTopicList.clear();
-                LOG.info("disconnectFromMqttServer: disconnecting from {}", mqttBroker);
-            }
-        } catch (MqttException e) {
-            dumpExceptionToLog("disconnectFromMqttServer: trouble disconnecing", e);
+        for (ChoochooMqttConnection mqttConnection : mqttConnections) {
+            LOG.info("disconnectFromMqttServer: disconnecting from {}", mqttConnection.getBroker());
+            mqttConnection.close();
+        }
+        mqttConnections = new ArrayList<>();
+    }
 
-        } finally {
-            connectedToBroker = false;
+    /**
+     * Connection 0 uses the client id as it is, so a single connection keeps the session it always had.
+     */
+    private void connectToMqttServer() {
+        for (int i = 0; i < connectionCount; i++) {
+            String clientId = i == 0 ? mqttClientId : mqttClientId + "-" + i;
+            ChoochooMqttConnection mqttConnection = new ChoochooMqttConnection(mqttBroker, clientId,
+                    createConnectionHandler(i));
+            mqttConnection.start();
+            mqttConnections.add(mqttConnection);
         }
+        LOG.info("connectToMqttServer: {} connections to {}", connectionCount, mqttBroker);
     }
 
-    private void subscribeToTopic(String topic) {
-        if (connectedToBroker) {
-            try {
-                mqttClient.subscribe(topic, 1);
-                LOG.info("subscribe: topic: {}", topic);
-            } catch (MqttException e) {
-                dumpExceptionToLog("subscribeToTopic: trouble subscribing: " + topic, e);
+    private void assignTopics() {
+        if (mqttConnections.isEmpty()) {
+            return;
+        }
+        List<Set<String>> partitions = new ArrayList<>(mqttConnections.size());
+        for (int i = 0; i < mqttConnections.size(); i++) {
+            partitions.add(new HashSet<String>());
+        }
+        if (sharedSubscriptionGroup != null) {
+            for (String topic : subscriberTopicList) {
+                for (Set<String> partition : partitions) {
+                    partition.add("$share/" + sharedSubscriptionGroup + "/" + topic);
+                }
+            }
+        } else {
+            warnIfUnbalanced();
+            // sorted, so the same topics stay on the same connections when the list is unchanged
+            int i = 0;
+            for (String topic : new TreeSet<>(subscriberTopicList)) {
+                partitions.get(i++ % partitions.size()).add(topic);
             }
         }
+        for (int i = 0; i < mqttConnections.size(); i++) {
+            mqttConnections.get(i).setTopics(partitions.get(i));
+        }
     }
 
-    private void unsubscribeToTopic(String topic) {
-        if (connectedToBroker) {
-            try {
-                mqttClient.unsubscribe(topic);
-                LOG.info("unsubscribe: topic: {}", topic);
-            } catch (MqttException e) {
-                dumpExceptionToLog("unsubscribeToTopic: trouble unsubscribing: " + topic, e);
+    private void warnIfUnbalanced() {
+        int connections = mqttConnections.size();
+        if (connections < 2) {
+            return;
+        }
+        if (subscriberTopicList.size() < connections) {
+            LOG.warn("assignTopics: {} topics for {} connections, {} connections will receive nothing; configure "
+                    + "shared-subscription-group if the broker supports it", subscriberTopicList.size(), connections,
+                    connections - subscriberTopicList.size());
+            return;
+        }
+        for (String topic : subscriberTopicList) {
+            if (topic.contains("#") || topic.contains("+")) {
+                LOG.warn("assignTopics: wildcard topic {} arrives on a single connection; configure "
+                        + "shared-subscription-group if the broker supports it", topic);
             }
         }
     }
 
+    /**
+     * The client id must stay the same across restarts for the broker to keep our session, and the messages queued
+     * for it, while we are away.  Unless one is configured it is derived from the host name.
+     */
+    private static String defaultClientId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return "choochoo-" + Integer.toHexString(host.hashCode());
+    }
+
     @Override
     public void onDataTreeChanged(Collection<DataTreeModification<MqttParms>> changes) {
         LOG.info("ChoochooProvider: OnDataTreeChanged(MqttParms) called");
@@ -144,34 +198,37 @@ public class ChoochooMqttPlugin implements MqttCallback, DataTreeChangeListener<
     public void mqttParmsChanged(MqttParms mqttParms) {
 
         LOG.info("MqttParmsChanged: {}", mqttParms.getMqttBroker());
+        String clientId = mqttParms.getClientId() != null ? mqttParms.getClientId() : defaultClientId();
+        int count = mqttParms.getConnectionCount() != null ? mqttParms.getConnectionCount() : 1;
         if (mqttParms.getMqttBroker() != null && (mqttBroker == null ||
-                !mqttParms.getMqttBroker().contentEquals(mqttBroker))) {
+                !mqttParms.getMqttBroker().contentEquals(mqttBroker) || !clientId.equals(mqttClientId) ||
+                count != connectionCount)) {
             disconnectFromMqttServer();
             this.mqttBroker = mqttParms.getMqttBroker();
-            try {
-                connectToMqttServer();
-            } catch (MqttException e) {
-                dumpExceptionToLog("MqttParmsChanged: trouble connecting: " + mqttBroker, e);
-            }
+            this.mqttClientId = clientId;
+            this.connectionCount = count;
+            connectToMqttServer();
         }
-        if (connectedToBroker) {
-            HashSet<String> tempSet = new HashSet();
-            List<SubscriberTopics> topics = mqttParms.getSubscriberTopics();
+        sharedSubscriptionGroup = mqttParms.getSharedSubscriptionGroup();
+
+        HashSet<String> tempSet = new HashSet<>();
+        List<ChoochooDebounceRule> debounceRules = new ArrayList<>();
+        List<SubscriberTopics> topics = mqttParms.getSubscriberTopics();
+        if (topics != null) {
             for (SubscriberTopics mqttTopic : topics) {
-                String topic = mqttTopic.getTopic();
                 LOG.info("MqttParmsChanged: {}", mqttTopic.getTopic());
-                if (!subscriberTopicList.contains(topic)) {
-                    subscribeToTopic(mqttTopic.getTopic());
-                } else {
-                    subscriberTopicList.remove(topic);
-                }
-                tempSet.add(topic);
-            }
-            for (String topic : subscriberTopicList) {
-                unsubscribeToTopic(topic);
+                tempSet.add(mqttTopic.getTopic());
+                Long interval = mqttTopic.getDebounceInterval();
+                Integer burst = mqttTopic.getDebounceBurst();
+                debounceRules.add(new ChoochooDebounceRule(mqttTopic.getTopic(),
+                        interval != null ? interval : ChoochooDebounceRule.DEFAULT_INTERVAL_MS,
+                        burst != null ? burst : ChoochooDebounceRule.DEFAULT_BURST));
             }
-            subscriberTopicList = tempSet;
         }
+        sensorDispatcher.setDebounceRules(debounceRules);
+        sensorDispatcher.setOverflowPolicy(overflowPolicy(mqttParms.getOverflowPolicy()));
+        subscriberTopicList = tempSet;
+        assignTopics();
     }
 
     public void mqttParmsDeleted() {
@@ -182,108 +239,69 @@ public class ChoochooMqttPlugin implements MqttCallback, DataTreeChangeListener<
         subscriberTopicList.clear();
     }
 
-
-    private void connectToMqttServer() throws MqttException {
-
-        connectedToBroker = false;
-        while (!connectedToBroker) {
-            try {
-                mqttClient = new MqttClient(mqttBroker, MqttClient.generateClientId(), null);
-                mqttClient.setCallback(this);
-                mqttClient.connect();
-
-                //connecting client to server
-                if (!mqttClient.isConnected()) {
-                    LOG.error("connectToMqttServer: trouble connecting to server");
-                } else {
-                    connectedToBroker = true;
-                    LOG.info("connectToMqttServer: connected to broker: {}", mqttBroker);
-                    return;
-                }
-
-            } catch (MqttException e) {
-                dumpExceptionToLog("connectToMqttServer: trouble connecting to server, will retry ...", e);
-                mqttClient = null;
-            }
-            pause();
+    private static ChoochooSensorDispatcher.OverflowPolicy overflowPolicy(MqttParms.OverflowPolicy policy) {
+        if (policy == null) {
+            return ChoochooSensorDispatcher.OverflowPolicy.DROP_OLDEST;
         }
-    }
-
-    private void pause() {
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            // Error handling goes here...
+        switch (policy) {
+            case CoalescePerSensor:
+                return ChoochooSensorDispatcher.OverflowPolicy.COALESCE_PER_SENSOR;
+            case Block:
+                return ChoochooSensorDispatcher.OverflowPolicy.BLOCK;
+            default:
+                return ChoochooSensorDispatcher.OverflowPolicy.DROP_OLDEST;
         }
     }
 
-    @Override
-    public void connectionLost(Throwable cause) {
-        LOG.error("connectToMqttServer: lost connection to server");
-        try {
-            connectToMqttServer();
-            for (String topic : subscriberTopicList) {
-                subscribeToTopic(topic);
-            }
-        } catch (MqttException e) {
-            dumpExceptionToLog("connectToMqttServer", e);
-        }
+    ConnectionHandler createConnectionHandler(int connection) {
+        return new ConnectionHandler(connection);
     }
 
-    @Override
-    public void messageArrived(String topic, MqttMessage message) throws Exception {
-        handleMqttMessage(topic, message.toString());
-    }
+    /**
+     * The callback for one connection.  Paho calls it on that connection's own thread, so it has its own frame to
+     * decode into.
+     */
+    class ConnectionHandler implements MqttCallback {
 
-    @Override
-    public void deliveryComplete(IMqttDeliveryToken token) {//Called when a outgoing publish is complete.
-    }
-
-    private void dumpExceptionToLog(String log, MqttException e) {
-        LOG.error("{}: {}", log, e.toString());
-    }
-
-    private void handleMqttMessage(String topic, String message) {
+        private final int connection;
+        private final ChoochooSensorFrame sensorFrame = new ChoochooSensorFrame();
 
-        //LOG.info("handleMqttMessage: topic: {}, message: {}", topic, message);
-        JSONObject jSensor = null;
-        try {
-            jSensor = new JSONObject(message);
-        } catch (JSONException e) {
-            LOG.error("{}", e.toString());
-            return;
+        ConnectionHandler(int connection) {
+            this.connection = connection;
         }
 
-        String sensorBlockId = jSensor.optString("block", null);
-        if (sensorBlockId == null) {
-            LOG.error("processSensor: missing block in Json String: {}", jSensor.toString());
-            return;
-        }
-        String blockPosition = jSensor.optString("pos", null);
-        if (blockPosition == null) {
-            LOG.error("processSensor: missing pos in Json String: {}", jSensor.toString());
-            return;
-        } else if (blockPosition.contentEquals("0")) {
-            savePosId = 0;
-            return;
+        /**
+         * Reconnecting is up to the ChoochooMqttConnection, this is just for the log.
+         */
+        @Override
+        public void connectionLost(Throwable cause) {
+            LOG.error("connectionLost: connection {} lost connection to server {}: {}", connection, mqttBroker,
+                    cause == null ? "" : cause.toString());
         }
 
-        DateTime currTime = new DateTime(DateTimeZone.UTC);
-        long diff = Seconds.secondsBetween(saveTime, currTime).getSeconds()%60;
-        if (diff < 2) return; // only sample sensor values at most every 2 seconds
-        saveTime = currTime;
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            handleMqttMessage(topic, message);
+        }
 
-        // if nothing has changed, return as we have alredy handled entering this state
-        if (saveBlockId == Integer.valueOf(sensorBlockId) && savePosId == Integer.valueOf(blockPosition)) {
-            return;
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {//Called when a outgoing publish is complete.
         }
 
-        saveBlockId = Integer.valueOf(sensorBlockId);
-        savePosId = Integer.valueOf(blockPosition);
+        private void handleMqttMessage(String topic, MqttMessage message) {
 
-        Integer sensorId = (Integer.valueOf(sensorBlockId)-1)*3 + Integer.valueOf(blockPosition);
+            //LOG.info("handleMqttMessage: topic: {}, message: {}", topic, message);
+            long arrivalNanos = System.nanoTime();
+            if (!ChoochooSensorDecoder.decode(message.getPayload(), sensorFrame)) {
+                statistics.messageDropped();
+                LOG.error("handleMqttMessage: malformed sensor message on {}: {}", topic, message);
+                return;
+            }
+            statistics.recordSince(ChoochooStatistics.Stage.DECODE, arrivalNanos);
 
-        onem2mManager.processSensor(topic, sensorId);
+            // throttling and duplicate suppression are per track, see ChoochooSensorShard
+            sensorDispatcher.dispatch(topic, sensorFrame.getBlockId(), sensorFrame.getPosId(), arrivalNanos);
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Which loco is in which block of which track, and since when.  A track is an mqtt topic; its blocks are numbered
+ * from 1 as the arduinos report them.
+ *
+ * The sensors do not say which loco tripped them, so when a loco is seen entering a block it is taken to be the
+ * nearest loco in a block behind it (wrapping round the loop), or the default loco if the track is empty.  This
+ * keeps several trains apart as long as they do not overtake each other.
+ *
+ * Every block is an atomic slot, and a loco moves by compare-and-set into its new block and then out of its old
+ * one, so sensor lanes update the index without locks and readers never block them.  A reader may briefly see a
+ * moving loco in both blocks.
+ */
+public class ChoochooOccupancyIndex {
+
+    static final int MAX_BLOCKS = 256;
+
+    public static final class Occupant {
+
+        private final String track;
+        private final int blockId;
+        private final String locoId;
+        private final long enteredMillis;
+
+        Occupant(String track, int blockId, String locoId, long enteredMillis) {
+            this.track = track;
+            this.blockId = blockId;
+            this.locoId = locoId;
+            this.enteredMillis = enteredMillis;
+        }
+
+        public String getTrack() {
+            return track;
+        }
+
+        public int getBlockId() {
+            return blockId;
+        }
+
+        public String getLocoId() {
+            return locoId;
+        }
+
+        public long getEnteredMillis() {
+            return enteredMillis;
+        }
+    }
+
+    private static final class Track {
+        private final AtomicReferenceArray<Occupant> blocks = new AtomicReferenceArray<>(MAX_BLOCKS + 1);
+        private final AtomicInteger highestBlockId = new AtomicInteger();
+    }
+
+    private final ConcurrentMap<String, Track> tracks = new ConcurrentHashMap<>();
+
+    /**
+     * A loco has been detected in blockId of track.
+     * @param defaultLocoId the loco to place on the track if there is none on it yet, may be null
+     * @return the loco now occupying the block, or null if there is no way of telling which loco it is
+     */
+    public String sensorTripped(String track, int blockId, String defaultLocoId) {
+
+        if (blockId < 1 || blockId > MAX_BLOCKS) {
+            return defaultLocoId;
+        }
+        Track t = tracks.get(track);
+        if (t == null) {
+            Track newTrack = new Track();
+            t = tracks.putIfAbsent(track, newTrack);
+            if (t == null) {
+                t = newTrack;
+            }
+        }
+        int highest = t.highestBlockId.get();
+        while (blockId > highest && !t.highestBlockId.compareAndSet(highest, blockId)) {
+            highest = t.highestBlockId.get();
+        }
+        highest = Math.max(highest, blockId);
+
+        while (true) {
+            Occupant current = t.blocks.get(blockId);
+            if (current != null) {
+                return current.locoId;
+            }
+
+            Occupant behind = null;
+            for (int i = 1; i < highest && behind == null; i++) {
+                int b = blockId - i;
+                if (b < 1) {
+                    b += highest;
+                }
+                behind = t.blocks.get(b);
+            }
+            String locoId = behind != null ? behind.locoId : defaultLocoId;
+            if (locoId == null) {
+                return null;
+            }
+
+            Occupant entering = new Occupant(track, blockId, locoId, System.currentTimeMillis());
+            if (t.blocks.compareAndSet(blockId, null, entering)) {
+                if (behind != null) {
+                    t.blocks.compareAndSet(behind.blockId, behind, null);
+                }
+                return locoId;
+            }
+            // another lane moved a loco into this block first, go round again
+        }
+    }
+
+    /**
+     * @param track only report this track, or all tracks if null
+     */
+    public List<Occupant> getOccupants(String track) {
+        List<Occupant> occupants = new ArrayList<>();
+        for (Map.Entry<String, Track> entry : tracks.entrySet()) {
+            if (track != null && !track.equals(entry.getKey())) {
+                continue;
+            }
+            Track t = entry.getValue();
+            int highest = t.highestBlockId.get();
+            for (int b = 1; b <= highest; b++) {
+                Occupant occupant = t.blocks.get(b);
+                if (occupant != null) {
+                    occupants.add(occupant);
+                }
+            }
+        }
+        return occupants;
+    }
+
+    public void clear() {
+        tracks.clear();
+    }
+}
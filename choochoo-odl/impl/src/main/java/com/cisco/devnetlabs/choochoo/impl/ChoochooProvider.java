@@ -7,6 +7,10 @@
  */
 package com.cisco.devnetlabs.choochoo.impl;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Future;
 import org.opendaylight.controller.md.sal.binding.api.*;
 import org.opendaylight.controller.sal.binding.api.BindingAwareBroker.ProviderContext;
@@ -15,7 +19,20 @@ import org.opendaylight.controller.sal.binding.api.BindingAwareProvider;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ChoochooService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainInput;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainsInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainsOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.GetBlockOccupancyInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.GetBlockOccupancyOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.GetBlockOccupancyOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.get.block.occupancy.output.BlockOccupancy;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.get.block.occupancy.output.BlockOccupancyBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.GetSensorHistoryInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.GetSensorHistoryOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.GetSensorHistoryOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.get.sensor.history.output.SensorEvent;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.get.sensor.history.output.SensorEventBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.iotdm.onem2m.rev150105.Onem2mService;
+import org.opendaylight.yangtools.yang.common.RpcError;
 import org.opendaylight.yangtools.yang.common.RpcResult;
 import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
 import org.slf4j.Logger;
@@ -26,9 +43,12 @@ public class ChoochooProvider implements ChoochooService, BindingAwareProvider,
     private static final Logger LOG = LoggerFactory.getLogger(ChoochooProvider.class);
     private ChoochooTrainManager choochooTrainManager = null;
     private ChoochooSensorManager choochooSensorManager = null;
+    private ChoochooRuleManager ruleManager = null;
     private ChoochooMqttPlugin mqttPlugin = null;
+    private ChoochooStatistics statistics = null;
     private DataBroker dataBroker;
     private RpcRegistration<ChoochooService> rpcReg;
+    private static final int DEFAULT_MAX_HISTORY_EVENTS = 1000;
 
     /*
         This class is automatically called when the system comes up.  It is analogous to you main entry point.
@@ -43,10 +63,14 @@ public class ChoochooProvider implements ChoochooService, BindingAwareProvider,
 
         dataBroker = session.getSALService(DataBroker.class);
         rpcReg = session.addRpcImplementation(ChoochooService.class, this);
-        choochooTrainManager = new ChoochooTrainManager(dataBroker);
+        statistics = new ChoochooStatistics(dataBroker);
+        choochooTrainManager = new ChoochooTrainManager(dataBroker, statistics);
         Onem2mService onem2mService = session.getRpcService(Onem2mService.class);
-        choochooSensorManager = new ChoochooSensorManager(onem2mService, choochooTrainManager);
-        mqttPlugin = new ChoochooMqttPlugin(dataBroker, choochooSensorManager);
+        ruleManager = new ChoochooRuleManager(dataBroker);
+        choochooSensorManager = new ChoochooSensorManager(onem2mService, choochooTrainManager, ruleManager,
+                statistics);
+        mqttPlugin = new ChoochooMqttPlugin(dataBroker, choochooSensorManager, statistics);
+        statistics.start();
 
         initializeDb();
 
@@ -60,10 +84,18 @@ public class ChoochooProvider implements ChoochooService, BindingAwareProvider,
     public void close() throws Exception {
         rpcReg.close();
         mqttPlugin.close();
+        choochooSensorManager.close();
+        ruleManager.close();
+        choochooTrainManager.close();
+        statistics.close();
 
         LOG.info("ChoochooProvider Closed");
     }
 
+    ChoochooStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * The database has a few moving parts.  First, the train topology.  It stores the list of trains discovered
      * from the train server.  See choochoo.yang.  In order to discover the trains, the train-controller has to be
@@ -96,7 +128,93 @@ public class ChoochooProvider implements ChoochooService, BindingAwareProvider,
      */
     @Override
     public Future<RpcResult<ControlTrainOutput>> controlTrain(ControlTrainInput input) {
-        ControlTrainOutput output =  choochooTrainManager.controlTrain(input);
+        return Futures.transform(choochooTrainManager.controlTrain(input),
+                new Function<ControlTrainOutput, RpcResult<ControlTrainOutput>>() {
+                    @Override
+                    public RpcResult<ControlTrainOutput> apply(ControlTrainOutput output) {
+                        return RpcResultBuilder.success(output).build();
+                    }
+                });
+    }
+
+    /**
+     * Control many trains in one go, the commands are sent in parallel
+     */
+    @Override
+    public Future<RpcResult<ControlTrainsOutput>> controlTrains(ControlTrainsInput input) {
+        return Futures.transform(choochooTrainManager.controlTrains(input),
+                new Function<ControlTrainsOutput, RpcResult<ControlTrainsOutput>>() {
+                    @Override
+                    public RpcResult<ControlTrainsOutput> apply(ControlTrainsOutput output) {
+                        return RpcResultBuilder.success(output).build();
+                    }
+                });
+    }
+
+    /**
+     * Report where the locos are, straight from memory rather than from oneM2M
+     */
+    @Override
+    public Future<RpcResult<GetBlockOccupancyOutput>> getBlockOccupancy(GetBlockOccupancyInput input) {
+        String track = input != null ? input.getTrack() : null;
+        List<BlockOccupancy> occupancyList = new ArrayList<>();
+        for (ChoochooOccupancyIndex.Occupant occupant : choochooSensorManager.getOccupancyIndex().getOccupants(track)) {
+            occupancyList.add(new BlockOccupancyBuilder()
+                    .setTrack(occupant.getTrack())
+                    .setBlockId((long) occupant.getBlockId())
+                    .setLocoId(occupant.getLocoId())
+                    .setEnteredTime(occupant.getEnteredMillis())
+                    .build());
+        }
+        GetBlockOccupancyOutput output = new GetBlockOccupancyOutputBuilder()
+                .setBlockOccupancy(occupancyList)
+                .build();
         return RpcResultBuilder.success(output).buildFuture();
     }
+
+    /**
+     * Slice of the sensor event history, by time, sensor or loco
+     */
+    @Override
+    public Future<RpcResult<GetSensorHistoryOutput>> getSensorHistory(GetSensorHistoryInput input) {
+        ChoochooSensorHistory history = choochooSensorManager.getSensorHistory();
+        if (history == null) {
+            return RpcResultBuilder.<GetSensorHistoryOutput>failed()
+                    .withError(RpcError.ErrorType.APPLICATION, "sensor history is not available")
+                    .buildFuture();
+        }
+        // no input at all is the whole history, up to the default number of events
+        Long startTime = input != null ? input.getStartTime() : null;
+        Long endTime = input != null ? input.getEndTime() : null;
+        Short inputSensorId = input != null ? input.getSensorId() : null;
+        Long inputMaxEvents = input != null ? input.getMaxEvents() : null;
+        String locoId = input != null ? input.getLocoId() : null;
+        long fromTime = startTime != null ? startTime : Long.MIN_VALUE;
+        long toTime = endTime != null ? endTime : Long.MAX_VALUE;
+        Integer sensorId = inputSensorId != null ? Integer.valueOf(inputSensorId) : null;
+        int maxEvents = inputMaxEvents != null ? (int) Math.min(inputMaxEvents, Integer.MAX_VALUE)
+                : DEFAULT_MAX_HISTORY_EVENTS;
+
+        List<SensorEvent> sensorEvents = new ArrayList<>();
+        for (ChoochooSensorHistory.Event event : history.query(fromTime, toTime, sensorId, locoId, maxEvents)) {
+            sensorEvents.add(new SensorEventBuilder()
+                    .setTimestamp(event.getTimestamp())
+                    .setSensorId((short) event.getSensorId())
+                    .setLocoId(event.getLocoId())
+                    .build());
+        }
+        GetSensorHistoryOutput output = new GetSensorHistoryOutputBuilder()
+                .setSensorEvent(sensorEvents)
+                .build();
+        return RpcResultBuilder.success(output).buildFuture();
+    }
+
+    /**
+     * Zero the sensor pipeline counters and latency histograms
+     */
+    @Override
+    public Future<RpcResult<Void>> resetSensorStatistics() {
+        statistics.reset();
+        return RpcResultBuilder.<Void>success().buildFuture();
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.opendaylight.controller.md.sal.binding.api.*;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.SensorRules;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.sensor.rules.Rule;
+import org.opendaylight.yangtools.concepts.ListenerRegistration;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens for the sensor-rules in the config data store and compiles them into a ChoochooRuleTable.  The sensor lanes
+ * pick up the new table on their next event; nothing waits while the rules are compiled.  With no rules configured
+ * the default odd/even table is used.
+ */
+public class ChoochooRuleManager implements DataTreeChangeListener<SensorRules> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChoochooRuleManager.class);
+    private static final InstanceIdentifier<SensorRules> SENSOR_RULES_IID =
+            InstanceIdentifier.builder(SensorRules.class).build();
+    private static final long DEFAULT_PRIORITY = 100;
+    private final ListenerRegistration<ChoochooRuleManager> dcReg;
+    private volatile ChoochooRuleTable ruleTable = ChoochooRuleTable.DEFAULT;
+
+    public ChoochooRuleManager(DataBroker dataBroker) {
+        dcReg = dataBroker.registerDataTreeChangeListener(new DataTreeIdentifier<>(LogicalDatastoreType.CONFIGURATION,
+                SENSOR_RULES_IID), this);
+    }
+
+    public void close() {
+        dcReg.close();
+    }
+
+    ChoochooRuleTable getRuleTable() {
+        return ruleTable;
+    }
+
+    @Override
+    public void onDataTreeChanged(Collection<DataTreeModification<SensorRules>> changes) {
+        LOG.info("ChoochooProvider: OnDataTreeChanged(SensorRules) called");
+        for (DataTreeModification<SensorRules> change : changes) {
+            switch (change.getRootNode().getModificationType()) {
+                case WRITE:
+                case SUBTREE_MODIFIED:
+                    sensorRulesChanged(change.getRootNode().getDataAfter());
+                    break;
+                case DELETE:
+                    ruleTable = ChoochooRuleTable.DEFAULT;
+                    LOG.info("sensorRulesDeleted: using the default rules");
+                    break;
+                default:
+                    LOG.error("ChoochooProvider: OnDataTreeChanged(SensorRules) non handled modification {}",
+                            change.getRootNode().getModificationType());
+                    break;
+            }
+        }
+    }
+
+    private void sensorRulesChanged(SensorRules sensorRules) {
+        List<Rule> rules = sensorRules.getRule();
+        if (rules == null || rules.isEmpty()) {
+            ruleTable = ChoochooRuleTable.DEFAULT;
+            LOG.info("sensorRulesChanged: no rules, using the default rules");
+            return;
+        }
+        ruleTable = compile(rules);
+        LOG.info("sensorRulesChanged: compiled {} rules", rules.size());
+    }
+
+    static ChoochooRuleTable compile(List<Rule> rules) {
+
+        List<Rule> sorted = new ArrayList<>(rules);
+        Collections.sort(sorted, new Comparator<Rule>() {
+            @Override
+            public int compare(Rule r1, Rule r2) {
+                int c = Long.compare(priorityOf(r1), priorityOf(r2));
+                return c != 0 ? c : r1.getName().compareTo(r2.getName());
+            }
+        });
+
+        ChoochooRuleTable.Builder builder = new ChoochooRuleTable.Builder();
+        for (Rule rule : sorted) {
+            ChoochooRuleTable.CompiledRule compiled = compileRule(rule);
+            if (compiled == null) {
+                continue;
+            }
+            List<Short> sensorIds = rule.getSensorId();
+            if (sensorIds == null || sensorIds.isEmpty()) {
+                for (int sensorId = 1; sensorId <= ChoochooRuleTable.MAX_SENSOR_ID; sensorId++) {
+                    builder.add(sensorId, compiled);
+                }
+            } else {
+                for (Short sensorId : sensorIds) {
+                    builder.add(sensorId, compiled);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static ChoochooRuleTable.CompiledRule compileRule(Rule rule) {
+
+        ChoochooLocoCommand command = new ChoochooLocoCommand()
+                .setHorn(rule.isHorn())
+                .setLight(rule.isLight())
+                .setSpeed(rule.getSpeed() != null ? Integer.valueOf(rule.getSpeed()) : null);
+        if (command.isEmpty()) {
+            LOG.error("compileRule: rule {} has no action, ignoring it", rule.getName());
+            return null;
+        }
+        double minSpeed = rule.getMinSpeed() != null ? rule.getMinSpeed() : 0;
+        double maxSpeed = rule.getMaxSpeed() != null ? rule.getMaxSpeed() : Double.MAX_VALUE;
+        long minInterval = rule.getMinInterval() != null ? TimeUnit.MILLISECONDS.toNanos(rule.getMinInterval()) : 0;
+        long maxInterval = rule.getMaxInterval() != null ? TimeUnit.MILLISECONDS.toNanos(rule.getMaxInterval())
+                : Long.MAX_VALUE;
+        if (minSpeed > maxSpeed || minInterval > maxInterval) {
+            LOG.error("compileRule: rule {} can never match, ignoring it", rule.getName());
+            return null;
+        }
+        return new ChoochooRuleTable.CompiledRule(rule.getName(), rule.getLocoId(), minSpeed, maxSpeed,
+                minInterval, maxInterval, command);
+    }
+
+    private static long priorityOf(Rule rule) {
+        return rule.getPriority() != null ? rule.getPriority() : DEFAULT_PRIORITY;
+    }
+}
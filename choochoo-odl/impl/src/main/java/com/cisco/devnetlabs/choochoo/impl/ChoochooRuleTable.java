@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The sensor rules compiled into a table indexed by sensor id.  Each entry holds, in priority order, just the rules
+ * that can fire for that sensor, so an event costs an array lookup plus a few comparisons for the rules on its
+ * sensor.  A table is never changed once built; new rules are compiled into a new table which replaces the old one.
+ */
+final class ChoochooRuleTable {
+
+    static final int MAX_SENSOR_ID = 255;
+
+    /**
+     * One rule with its conditions turned into ranges.  The command is shared by every event the rule fires for so
+     * it must not be modified.
+     */
+    static final class CompiledRule {
+
+        private final String name;
+        private final String locoId;
+        private final double minSpeed;
+        private final double maxSpeed;
+        private final long minIntervalNanos;
+        private final long maxIntervalNanos;
+        private final ChoochooLocoCommand command;
+
+        /**
+         * @param locoId null for any loco
+         * @param minIntervalNanos 0 for no minimum, the rule still needs an interval if maxIntervalNanos is set
+         * @param maxIntervalNanos Long.MAX_VALUE for no maximum
+         */
+        CompiledRule(String name, String locoId, double minSpeed, double maxSpeed, long minIntervalNanos,
+                     long maxIntervalNanos, ChoochooLocoCommand command) {
+            this.name = name;
+            this.locoId = locoId;
+            this.minSpeed = minSpeed;
+            this.maxSpeed = maxSpeed;
+            this.minIntervalNanos = minIntervalNanos;
+            this.maxIntervalNanos = maxIntervalNanos;
+            this.command = command;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        ChoochooLocoCommand getCommand() {
+            return command;
+        }
+
+        /**
+         * @param intervalNanos time since the loco's previous sensor, negative if not known
+         */
+        boolean matches(String locoId, double speed, long intervalNanos) {
+            if (this.locoId != null && !this.locoId.equals(locoId)) {
+                return false;
+            }
+            if (speed < minSpeed || speed > maxSpeed) {
+                return false;
+            }
+            if (minIntervalNanos > 0 || maxIntervalNanos != Long.MAX_VALUE) {
+                return intervalNanos >= minIntervalNanos && intervalNanos <= maxIntervalNanos;
+            }
+            return true;
+        }
+    }
+
+    private static final CompiledRule[] NO_RULES = new CompiledRule[0];
+
+    /**
+     * What processSensor always did: lights on for an odd sensor, horn on for an even one.
+     */
+    static final ChoochooRuleTable DEFAULT;
+    static {
+        ChoochooRuleTable.Builder builder = new ChoochooRuleTable.Builder();
+        CompiledRule odd = new CompiledRule("odd-sensor-light", null, 0, Double.MAX_VALUE, 0, Long.MAX_VALUE,
+                new ChoochooLocoCommand().setHorn(false).setLight(true));
+        CompiledRule even = new CompiledRule("even-sensor-horn", null, 0, Double.MAX_VALUE, 0, Long.MAX_VALUE,
+                new ChoochooLocoCommand().setHorn(true).setLight(false));
+        for (int sensorId = 1; sensorId <= MAX_SENSOR_ID; sensorId++) {
+            builder.add(sensorId, sensorId % 2 == 1 ? odd : even);
+        }
+        DEFAULT = builder.build();
+    }
+
+    private final CompiledRule[][] rulesBySensor;
+
+    private ChoochooRuleTable(CompiledRule[][] rulesBySensor) {
+        this.rulesBySensor = rulesBySensor;
+    }
+
+    /**
+     * @return the first rule for the sensor whose conditions hold, or null if none do
+     */
+    CompiledRule match(int sensorId, String locoId, double speed, long intervalNanos) {
+        if (sensorId < 0 || sensorId > MAX_SENSOR_ID) {
+            return null;
+        }
+        for (CompiledRule rule : rulesBySensor[sensorId]) {
+            if (rule.matches(locoId, speed, intervalNanos)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rules must be added in priority order
+     */
+    static final class Builder {
+
+        private final List<List<CompiledRule>> rules = new ArrayList<>(MAX_SENSOR_ID + 1);
+
+        Builder() {
+            for (int i = 0; i <= MAX_SENSOR_ID; i++) {
+                rules.add(new ArrayList<CompiledRule>(2));
+            }
+        }
+
+        Builder add(int sensorId, CompiledRule rule) {
+            rules.get(sensorId).add(rule);
+            return this;
+        }
+
+        ChoochooRuleTable build() {
+            CompiledRule[][] rulesBySensor = new CompiledRule[MAX_SENSOR_ID + 1][];
+            for (int i = 0; i <= MAX_SENSOR_ID; i++) {
+                List<CompiledRule> sensorRules = rules.get(i);
+                rulesBySensor[i] = sensorRules.isEmpty() ? NO_RULES
+                        : sensorRules.toArray(new CompiledRule[sensorRules.size()]);
+            }
+            return new ChoochooRuleTable(rulesBySensor);
+        }
+    }
+}
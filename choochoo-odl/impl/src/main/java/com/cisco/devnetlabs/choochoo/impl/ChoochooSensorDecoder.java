@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+/**
+ * Decodes the sensor messages published by the track arduinos, eg {"block":2,"pos":1}.  Only the block and pos
+ * members are of interest so rather than building a String and a JSONObject for every message, the payload bytes are
+ * scanned in place and the two values are written to a ChoochooSensorFrame as ints.  Other members are skipped.  The
+ * values may be json numbers or strings holding a number, as the original org.json based code accepted both.
+ *
+ * Anything that is not a well formed json object with non negative integer block and pos members is rejected.
+ *
+ * A device may instead send a fixed layout binary frame, big endian, 14 bytes:
+ *
+ *   0  magic 0xC5, which no json text starts with
+ *   1  version, 1
+ *   2  block, unsigned 16 bits
+ *   4  pos, unsigned 8 bits
+ *   5  reserved, 0
+ *   6  sequence, unsigned 32 bits, counting the frames the device has sent
+ *  10  device timestamp, unsigned 32 bits, milliseconds on the device's clock
+ *
+ * The format is told apart by the first byte, so json and binary devices can share a topic while they are moved over.
+ */
+final class ChoochooSensorDecoder {
+
+    private static final byte[] BLOCK = {'b', 'l', 'o', 'c', 'k'};
+    private static final byte[] POS = {'p', 'o', 's'};
+
+    private static final int FIELD_OTHER = 0;
+    private static final int FIELD_BLOCK = 1;
+    private static final int FIELD_POS = 2;
+
+    private static final int MALFORMED = -1;
+
+    static final byte BINARY_MAGIC = (byte) 0xC5;
+    static final byte BINARY_VERSION = 1;
+    static final int BINARY_LENGTH = 14;
+
+    private ChoochooSensorDecoder() {
+    }
+
+    /**
+     * @return true if frame was filled in from payload, false if the payload is malformed
+     */
+    static boolean decode(byte[] payload, ChoochooSensorFrame frame) {
+        if (payload.length > 0 && payload[0] == BINARY_MAGIC) {
+            return decodeBinary(payload, frame);
+        }
+        return decodeJson(payload, frame);
+    }
+
+    private static boolean decodeBinary(byte[] payload, ChoochooSensorFrame frame) {
+        if (payload.length != BINARY_LENGTH || payload[1] != BINARY_VERSION) {
+            return false;
+        }
+        frame.set(unsigned16(payload, 2), payload[4] & 0xff, unsigned32(payload, 6), unsigned32(payload, 10));
+        return true;
+    }
+
+    /**
+     * A binary frame, for the simulators and tests.
+     */
+    static byte[] encodeBinary(int blockId, int posId, long sequence, long deviceTimestamp) {
+        byte[] payload = new byte[BINARY_LENGTH];
+        payload[0] = BINARY_MAGIC;
+        payload[1] = BINARY_VERSION;
+        payload[2] = (byte) (blockId >>> 8);
+        payload[3] = (byte) blockId;
+        payload[4] = (byte) posId;
+        for (int i = 0; i < 4; i++) {
+            payload[6 + i] = (byte) (sequence >>> (24 - 8 * i));
+            payload[10 + i] = (byte) (deviceTimestamp >>> (24 - 8 * i));
+        }
+        return payload;
+    }
+
+    private static int unsigned16(byte[] payload, int i) {
+        return (payload[i] & 0xff) << 8 | payload[i + 1] & 0xff;
+    }
+
+    private static long unsigned32(byte[] payload, int i) {
+        return ((long) unsigned16(payload, i)) << 16 | unsigned16(payload, i + 2);
+    }
+
+    private static boolean decodeJson(byte[] payload, ChoochooSensorFrame frame) {
+
+        int len = payload.length;
+        int i = skipWhitespace(payload, 0);
+        if (i >= len || payload[i] != '{') {
+            return false;
+        }
+        i = skipWhitespace(payload, i + 1);
+
+        int blockId = MALFORMED;
+        int posId = MALFORMED;
+        while (true) {
+            if (i >= len || payload[i] != '"') {
+                return false;
+            }
+            int keyEnd = skipString(payload, i);
+            if (keyEnd == MALFORMED) {
+                return false;
+            }
+            int field = fieldOf(payload, i + 1, keyEnd - 1);
+
+            i = skipWhitespace(payload, keyEnd);
+            if (i >= len || payload[i] != ':') {
+                return false;
+            }
+            i = skipWhitespace(payload, i + 1);
+
+            if (field == FIELD_OTHER) {
+                i = skipValue(payload, i);
+                if (i == MALFORMED) {
+                    return false;
+                }
+            } else {
+                boolean quoted = i < len && payload[i] == '"';
+                if (quoted) {
+                    i++;
+                }
+                int start = i;
+                long value = 0;
+                while (i < len && payload[i] >= '0' && payload[i] <= '9') {
+                    value = value * 10 + (payload[i] - '0');
+                    if (value > Integer.MAX_VALUE) {
+                        return false;
+                    }
+                    i++;
+                }
+                if (i == start) {
+                    return false;
+                }
+                if (quoted) {
+                    if (i >= len || payload[i] != '"') {
+                        return false;
+                    }
+                    i++;
+                }
+                if (field == FIELD_BLOCK) {
+                    blockId = (int) value;
+                } else {
+                    posId = (int) value;
+                }
+            }
+
+            i = skipWhitespace(payload, i);
+            if (i >= len) {
+                return false;
+            }
+            if (payload[i] == '}') {
+                break;
+            }
+            if (payload[i] != ',') {
+                return false;
+            }
+            i = skipWhitespace(payload, i + 1);
+        }
+
+        if (skipWhitespace(payload, i + 1) != len || blockId == MALFORMED || posId == MALFORMED) {
+            return false;
+        }
+        frame.set(blockId, posId);
+        return true;
+    }
+
+    private static int fieldOf(byte[] payload, int start, int end) {
+        if (matches(payload, start, end, BLOCK)) {
+            return FIELD_BLOCK;
+        }
+        if (matches(payload, start, end, POS)) {
+            return FIELD_POS;
+        }
+        return FIELD_OTHER;
+    }
+
+    private static boolean matches(byte[] payload, int start, int end, byte[] name) {
+        if (end - start != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (payload[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(byte[] payload, int i) {
+        while (i < payload.length) {
+            byte c = payload[i];
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param i index of the opening quote
+     * @return index just past the closing quote
+     */
+    private static int skipString(byte[] payload, int i) {
+        for (int j = i + 1; j < payload.length; j++) {
+            if (payload[j] == '\\') {
+                j++;
+            } else if (payload[j] == '"') {
+                return j + 1;
+            }
+        }
+        return MALFORMED;
+    }
+
+    /**
+     * Skip a value we are not interested in: a string, a nested object or array, or a literal/number.
+     */
+    private static int skipValue(byte[] payload, int i) {
+
+        int len = payload.length;
+        if (i >= len) {
+            return MALFORMED;
+        }
+        byte c = payload[i];
+        if (c == '"') {
+            return skipString(payload, i);
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (i < len) {
+                c = payload[i];
+                if (c == '"') {
+                    i = skipString(payload, i);
+                    if (i == MALFORMED) {
+                        return MALFORMED;
+                    }
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        return i + 1;
+                    }
+                }
+                i++;
+            }
+            return MALFORMED;
+        }
+        int start = i;
+        while (i < len) {
+            c = payload[i];
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                break;
+            }
+            i++;
+        }
+        return i == start ? MALFORMED : i;
+    }
+}
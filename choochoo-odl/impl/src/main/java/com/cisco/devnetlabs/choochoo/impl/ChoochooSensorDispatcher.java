@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sensor events are sharded by topic onto a fixed set of lanes.  Each lane is a single thread that owns the
+ * ChoochooSensorShard of every topic hashed to it, so the per-track throttle and last position are only ever touched
+ * by one writer, and tracks on different lanes are processed in parallel on different cores.  Events for the same
+ * topic always land on the same lane so they are handled in the order they arrived.
+ *
+ * Each lane takes its events from a bounded ChoochooIngestQueue, so a burst the lanes cannot keep up with costs a
+ * bounded amount of memory.  What happens when a lane's queue is full is up to the OverflowPolicy; unless it is
+ * BLOCK, the paho thread handing over the event never waits and keeps the connection to the broker alive.
+ *
+ * The debounce rules are matched against a topic when its shard is created and again only when the rules change, so
+ * a reading never does any topic matching.
+ */
+public class ChoochooSensorDispatcher {
+
+    public enum OverflowPolicy {
+        /** make room by throwing away the oldest event on the lane */
+        DROP_OLDEST,
+        /** only queue one event per sensor, dropping any repeat while it waits; then as DROP_OLDEST */
+        COALESCE_PER_SENSOR,
+        /**
+         * wait for room, holding up the paho thread; paho stops reading the connection once its own small inbound
+         * queue is full, and the broker holds back whatever is beyond the receive window it is configured with
+         */
+        BLOCK
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChoochooSensorDispatcher.class);
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private final ChoochooSensorManager sensorManager;
+    private final ChoochooStatistics statistics;
+    private final Lane[] lanes;
+    private volatile List<ChoochooDebounceRule> debounceRules = Collections.emptyList();
+    private volatile int debounceGeneration = 0;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private volatile boolean closed;
+
+    public ChoochooSensorDispatcher(ChoochooSensorManager sensorManager, ChoochooStatistics statistics) {
+        this(sensorManager, statistics, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity events each lane can have waiting
+     */
+    public ChoochooSensorDispatcher(ChoochooSensorManager sensorManager, ChoochooStatistics statistics,
+                                    int numLanes, int queueCapacity) {
+
+        this.sensorManager = sensorManager;
+        this.statistics = statistics;
+        this.lanes = new Lane[Math.max(1, numLanes)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(i, queueCapacity);
+        }
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+        LOG.info("Created ChoochooSensorDispatcher with {} lanes of {}", lanes.length, lanes[0].queue.capacity());
+    }
+
+    private int laneFor(String topic) {
+        return (topic.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * The first rule whose topic filter matches a topic applies to it; topics matching none get the default of one
+     * event per sensor every 2 seconds.
+     */
+    public void setDebounceRules(List<ChoochooDebounceRule> rules) {
+        debounceRules = Collections.unmodifiableList(new ArrayList<>(rules));
+        debounceGeneration++;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return events waiting on all the lanes
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.queue.size();
+        }
+        return depth;
+    }
+
+    public int getQueueCapacity() {
+        return lanes.length * lanes[0].queue.capacity();
+    }
+
+    private ChoochooDebounceRule debounceRuleFor(String topic) {
+        for (ChoochooDebounceRule rule : debounceRules) {
+            if (ChoochooDebounceRule.topicMatches(rule.getTopicFilter(), topic)) {
+                return rule;
+            }
+        }
+        return ChoochooDebounceRule.DEFAULT;
+    }
+
+    /**
+     * Hand a sensor reading to the lane that owns its topic.  This does not wait for the reading to be processed,
+     * nor for room on the lane unless the overflow policy is BLOCK.
+     * @param arrivalNanos System.nanoTime() when the mqtt message arrived
+     */
+    public void dispatch(String topic, int blockId, int posId, long arrivalNanos) {
+        lanes[laneFor(topic)].enqueue(new SensorEvent(topic, blockId, posId, arrivalNanos));
+    }
+
+    public void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.thread);
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A reading waiting on a lane.  Two are equal if they are from the same sensor, for COALESCE_PER_SENSOR.
+     */
+    private static final class SensorEvent {
+        private final String topic;
+        private final int blockId;
+        private final int posId;
+        private final long arrivalNanos;
+        // in its lane's queuedSensors
+        private boolean coalescing;
+
+        private SensorEvent(String topic, int blockId, int posId, long arrivalNanos) {
+            this.topic = topic;
+            this.blockId = blockId;
+            this.posId = posId;
+            this.arrivalNanos = arrivalNanos;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SensorEvent)) {
+                return false;
+            }
+            SensorEvent other = (SensorEvent) o;
+            return blockId == other.blockId && posId == other.posId && topic.equals(other.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return (topic.hashCode() * 31 + blockId) * 31 + posId;
+        }
+    }
+
+    private final class Lane implements Runnable {
+
+        private final ChoochooIngestQueue<SensorEvent> queue;
+        private final Set<SensorEvent> queuedSensors =
+                Collections.newSetFromMap(new ConcurrentHashMap<SensorEvent, Boolean>());
+        // only touched on the lane's thread
+        private final Map<String, ChoochooSensorShard> shards = new HashMap<>();
+        private final Thread thread;
+        private volatile boolean waiting;
+
+        private Lane(int lane, int queueCapacity) {
+            queue = new ChoochooIngestQueue<>(queueCapacity);
+            thread = new ThreadFactoryBuilder()
+                    .setNameFormat("choochoo-sensor-lane-" + lane)
+                    .setDaemon(true)
+                    .build()
+                    .newThread(this);
+        }
+
+        private void enqueue(SensorEvent event) {
+
+            OverflowPolicy policy = overflowPolicy;
+            if (policy == OverflowPolicy.COALESCE_PER_SENSOR) {
+                if (!queuedSensors.add(event)) {
+                    statistics.messageCoalesced();
+                    return;
+                }
+                event.coalescing = true;
+            }
+            boolean blocked = false;
+            while (!queue.offer(event)) {
+                if (policy == OverflowPolicy.BLOCK) {
+                    if (closed) {
+                        return;
+                    }
+                    if (!blocked) {
+                        blocked = true;
+                        statistics.ingestBlocked();
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                } else {
+                    SensorEvent oldest = queue.poll();
+                    if (oldest != null) {
+                        dequeued(oldest);
+                        statistics.messageOverflowed();
+                    }
+                }
+            }
+            // the queue's volatile write comes first, so either the lane sees the event or we see it waiting
+            if (waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private void dequeued(SensorEvent event) {
+            if (event.coalescing) {
+                queuedSensors.remove(event);
+            }
+        }
+
+        /**
+         * Take events off the queue until closed and there are none left, sleeping while there are none.
+         */
+        @Override
+        public void run() {
+            for (;;) {
+                SensorEvent event = queue.poll();
+                if (event == null) {
+                    if (closed) {
+                        return;
+                    }
+                    waiting = true;
+                    event = queue.poll();
+                    if (event == null && !closed) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    if (event == null) {
+                        continue;
+                    }
+                }
+                dequeued(event);
+                try {
+                    process(event);
+                } catch (RuntimeException e) {
+                    LOG.error("run: trouble processing sensor event on {}: {}", event.topic, e.toString());
+                }
+            }
+        }
+
+        private void process(SensorEvent event) {
+            ChoochooSensorShard shard = shards.get(event.topic);
+            if (shard == null) {
+                shard = new ChoochooSensorShard(event.topic);
+                shards.put(event.topic, shard);
+            }
+            int generation = debounceGeneration;
+            if (shard.getDebounceGeneration() != generation) {
+                shard.setDebounceRule(debounceRuleFor(event.topic), generation);
+            }
+            long startNanos = System.nanoTime();
+            int sensorId = shard.accept(event.blockId, event.posId, startNanos);
+            statistics.recordSince(ChoochooStatistics.Stage.THROTTLE, startNanos);
+            if (sensorId == ChoochooSensorShard.NO_SENSOR) {
+                statistics.messageThrottled();
+                return;
+            }
+            statistics.messageAccepted();
+            sensorManager.processSensor(event.topic, event.blockId, sensorId, event.arrivalNanos);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+/**
+ * A decoded sensor reading.  One frame is reused by the thread that decodes mqtt messages so decoding a message
+ * does not allocate; copy the values out before handing them to another thread.
+ */
+final class ChoochooSensorFrame {
+
+    /** the sequence and device timestamp of a json message, which has neither */
+    static final long NONE = -1;
+
+    private int blockId;
+    private int posId;
+    private long sequence;
+    private long deviceTimestamp;
+
+    int getBlockId() {
+        return blockId;
+    }
+
+    int getPosId() {
+        return posId;
+    }
+
+    /**
+     * @return the device's count of frames sent, unsigned 32 bits, or NONE
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return milliseconds on the device's own clock, unsigned 32 bits, or NONE
+     */
+    long getDeviceTimestamp() {
+        return deviceTimestamp;
+    }
+
+    void set(int blockId, int posId) {
+        set(blockId, posId, NONE, NONE);
+    }
+
+    void set(int blockId, int posId, long sequence, long deviceTimestamp) {
+        this.blockId = blockId;
+        this.posId = posId;
+        this.sequence = sequence;
+        this.deviceTimestamp = deviceTimestamp;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Every accepted sensor event, kept in a fixed size ring of fixed size records in a memory mapped file.  The oneM2M
+ * sensor container only keeps the latest value; this keeps the last million or so events, which is days of running
+ * the demo track, and survives a restart.
+ *
+ * Layout: a header holding the magic, version, record size, capacity and the sequence number of the next record as
+ * of the last close, then capacity records of
+ *   sequence (8) | timestamp millis (8) | sensor id (2) | loco id length (1) | spare (1) | loco id (12)
+ * Record n lives in slot n % capacity.  Its sequence is written to the file last, so a record torn by a crash is not
+ * read back when the file is reopened.
+ *
+ * The sensor lanes append concurrently.  A record is claimed with a CAS, which hands out the sequence number and
+ * the timestamp together; the timestamp is never less than the one before it, so a clock stepping back cannot spoil
+ * the binary search by time.  Which record each slot holds is also kept in an AtomicLongArray: a writer takes the
+ * slot by CASing it to WRITING and publishes the record with a volatile set.  A reader checks the slot holds the
+ * record it wants, reads it, then checks again with a CAS of the sequence to itself.  Both sides updating the slot
+ * means the reader's check is ordered before any writer that goes on to overwrite the record, so a record that
+ * passes the second check was not torn.  Queries read the mapped file in place and only build objects for the
+ * events they return.
+ */
+public class ChoochooSensorHistory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChoochooSensorHistory.class);
+
+    static final int DEFAULT_CAPACITY = 1 << 20;
+    static final int MAX_LOCO_ID_LENGTH = 12;
+
+    private static final int MAGIC = 0x43484f4f; // CHOO
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 32;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int RECORD_SIZE_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int NEXT_SEQUENCE_OFFSET = 16;
+
+    private static final int SEQUENCE = 0;
+    private static final int TIMESTAMP = 8;
+    private static final int SENSOR_ID = 16;
+    private static final int LOCO_ID_LENGTH = 18;
+    private static final int LOCO_ID = 20;
+
+    public static final class Event {
+
+        private final long sequence;
+        private final long timestamp;
+        private final int sensorId;
+        private final String locoId;
+
+        Event(long sequence, long timestamp, int sensorId, String locoId) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.sensorId = sensorId;
+            this.locoId = locoId;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getSensorId() {
+            return sensorId;
+        }
+
+        /**
+         * @return the loco, or null if it was not known
+         */
+        public String getLocoId() {
+            return locoId;
+        }
+    }
+
+    // what slotSequences holds for a slot that has never been written, and one a writer has taken
+    private static final long EMPTY = -1;
+    private static final long WRITING = -2;
+
+    /**
+     * The next record to claim and the latest timestamp handed out
+     */
+    private static final class Head {
+        private final long nextSequence;
+        private final long timestamp;
+
+        private Head(long nextSequence, long timestamp) {
+            this.nextSequence = nextSequence;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final AtomicReference<Head> head;
+    private final AtomicLongArray slotSequences;
+
+    private ChoochooSensorHistory(RandomAccessFile file, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.slotSequences = new AtomicLongArray(capacity);
+        long last = EMPTY;
+        for (int slot = 0; slot < capacity; slot++) {
+            long sequence = buffer.getLong(offsetOf(slot) + SEQUENCE);
+            if (sequence >= 0 && sequence % capacity == slot) {
+                slotSequences.set(slot, sequence);
+                last = Math.max(last, sequence);
+            } else {
+                slotSequences.set(slot, EMPTY);
+            }
+        }
+        long timestamp = last >= 0 ? buffer.getLong(offsetOf(slotOf(last)) + TIMESTAMP) : Long.MIN_VALUE;
+        this.head = new AtomicReference<>(new Head(last + 1, timestamp));
+    }
+
+    /**
+     * Map the ring file, carrying on from where it left off if it was written with the same capacity, otherwise
+     * starting it afresh.
+     */
+    public static ChoochooSensorHistory open(File path, int capacity) throws IOException {
+
+        File dir = path.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            boolean reuse = file.length() == size;
+            file.setLength(size);
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (reuse && buffer.getInt(MAGIC_OFFSET) == MAGIC && buffer.getInt(VERSION_OFFSET) == VERSION
+                    && buffer.getInt(RECORD_SIZE_OFFSET) == RECORD_SIZE && buffer.getInt(CAPACITY_OFFSET) == capacity) {
+                LOG.info("open: {} has {} events", path, Math.min(buffer.getLong(NEXT_SEQUENCE_OFFSET), capacity));
+            } else {
+                for (int slot = 0; slot < capacity; slot++) {
+                    buffer.putLong(offsetOf(slot) + SEQUENCE, EMPTY);
+                }
+                buffer.putInt(MAGIC_OFFSET, MAGIC);
+                buffer.putInt(VERSION_OFFSET, VERSION);
+                buffer.putInt(RECORD_SIZE_OFFSET, RECORD_SIZE);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putLong(NEXT_SEQUENCE_OFFSET, 0);
+                LOG.info("open: created {} for {} events", path, capacity);
+            }
+            // the header's next sequence is only written on close, the records themselves say how far we got
+            return new ChoochooSensorHistory(file, buffer, capacity);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param timestamp milliseconds since the epoch, stored as the latest timestamp so far if it is earlier
+     * @param locoId may be null, only the first 12 bytes are kept
+     */
+    public void append(long timestamp, int sensorId, String locoId) {
+
+        Head h;
+        Head claimed;
+        do {
+            h = head.get();
+            claimed = new Head(h.nextSequence + 1, Math.max(timestamp, h.timestamp));
+        } while (!head.compareAndSet(h, claimed));
+        long sequence = h.nextSequence;
+        int slot = slotOf(sequence);
+
+        // wait out a writer still on the record a lap before; if we have been lapped ourselves, ours is already gone
+        while (true) {
+            long previous = slotSequences.get(slot);
+            if (previous > sequence) {
+                return;
+            }
+            if (previous != WRITING && slotSequences.compareAndSet(slot, previous, WRITING)) {
+                break;
+            }
+            Thread.yield();
+        }
+
+        int offset = offsetOf(slot);
+        buffer.putLong(offset + SEQUENCE, EMPTY);
+        buffer.putLong(offset + TIMESTAMP, claimed.timestamp);
+        buffer.putShort(offset + SENSOR_ID, (short) sensorId);
+        int length = 0;
+        if (locoId != null) {
+            byte[] bytes = locoId.getBytes(StandardCharsets.UTF_8);
+            length = Math.min(bytes.length, MAX_LOCO_ID_LENGTH);
+            for (int i = 0; i < length; i++) {
+                buffer.put(offset + LOCO_ID + i, bytes[i]);
+            }
+        }
+        buffer.put(offset + LOCO_ID_LENGTH, (byte) (locoId != null ? length : 0xff));
+        buffer.putLong(offset + SEQUENCE, sequence);
+        slotSequences.set(slot, sequence);
+    }
+
+    /**
+     * @param fromTime milliseconds since the epoch, inclusive
+     * @param toTime milliseconds since the epoch, inclusive
+     * @param sensorId only this sensor, or any sensor if null
+     * @param locoId only this loco, or any loco if null
+     * @param maxEvents stop after this many
+     * @return the matching events, oldest first
+     */
+    public List<Event> query(long fromTime, long toTime, Integer sensorId, String locoId, int maxEvents) {
+
+        List<Event> events = new ArrayList<>();
+        long last = head.get().nextSequence - 1;
+        long first = Math.max(0, last - capacity + 1);
+        if (last < first || maxEvents <= 0) {
+            return events;
+        }
+
+        // first event at or after fromTime; a slot being overwritten sorts as if it were newer than anything
+        long lo = first;
+        long hi = last + 1;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            long timestamp = timestampOf(mid);
+            if (timestamp != Long.MIN_VALUE && timestamp < fromTime) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        byte[] locoBytes = locoId != null ? locoId.getBytes(StandardCharsets.UTF_8) : null;
+        for (long sequence = lo; sequence <= last && events.size() < maxEvents; sequence++) {
+            int slot = slotOf(sequence);
+            int offset = offsetOf(slot);
+            if (slotSequences.get(slot) != sequence) {
+                continue;
+            }
+            long timestamp = buffer.getLong(offset + TIMESTAMP);
+            if (!slotSequences.compareAndSet(slot, sequence, sequence)) {
+                // overwritten while we were reading it
+                continue;
+            }
+            if (timestamp > toTime) {
+                break;
+            }
+            if (timestamp < fromTime) {
+                continue;
+            }
+            int sensor = buffer.getShort(offset + SENSOR_ID) & 0xffff;
+            if (sensorId != null && sensorId != sensor) {
+                continue;
+            }
+            int length = buffer.get(offset + LOCO_ID_LENGTH) & 0xff;
+            if (locoBytes != null && !locoMatches(offset, length, locoBytes)) {
+                continue;
+            }
+            String loco = null;
+            if (length != 0xff) {
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = buffer.get(offset + LOCO_ID + i);
+                }
+                loco = new String(bytes, StandardCharsets.UTF_8);
+            }
+            if (!slotSequences.compareAndSet(slot, sequence, sequence)) {
+                continue;
+            }
+            events.add(new Event(sequence, timestamp, sensor, loco));
+        }
+        return events;
+    }
+
+    private boolean locoMatches(int offset, int length, byte[] locoBytes) {
+        if (length == 0xff || length != Math.min(locoBytes.length, MAX_LOCO_ID_LENGTH)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + LOCO_ID + i) != locoBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long timestampOf(long sequence) {
+        int slot = slotOf(sequence);
+        if (slotSequences.get(slot) != sequence) {
+            return Long.MIN_VALUE;
+        }
+        long timestamp = buffer.getLong(offsetOf(slot) + TIMESTAMP);
+        return slotSequences.compareAndSet(slot, sequence, sequence) ? timestamp : Long.MIN_VALUE;
+    }
+
+    private int slotOf(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    private static int offsetOf(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Only once the sensor lanes have stopped appending.
+     */
+    public void close() {
+        buffer.putLong(NEXT_SEQUENCE_OFFSET, head.get().nextSequence);
+        buffer.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOG.error("close: {}", e.toString());
+        }
+    }
+}
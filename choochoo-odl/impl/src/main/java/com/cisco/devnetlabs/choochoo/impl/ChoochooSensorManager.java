@@ -8,6 +8,11 @@
 
 package com.cisco.devnetlabs.choochoo.impl;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.File;
+import java.io.IOException;
 import org.json.JSONObject;
 import org.opendaylight.iotdm.onem2m.client.*;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.iotdm.onem2m.rev150105.Onem2mService;
@@ -19,30 +24,74 @@ import org.slf4j.LoggerFactory;
  * The ChoochooSensor class manages the handling of the sensor messages received via MQTT messages.  There are 12
  * sensors around the track which is acbout 76 feet long.  There a 4 arduino's each with 3 sensors on them.  This code
  * will listen as a train nears the sensor. When this happens, we react by updating the oneM2M data store with the
- * curent sesnor id.  Then if the sensor [1...12] is even, we will blow the train's horn.  And if it odd, we will
- * turn on the light.  When the train goes away from teh sensor, we will stop the horn or light.  This quite simple
+ * curent sesnor id.  Then we act on the sensor-rules configured in choochoo.yang; without any, if the sensor [1...12]
+ * is even, we will blow the train's horn.  And if it odd, we will turn on the light.  This quite simple
  * but it illustrates adding data to an IOT datastore in oneM2M format, as well as reacting to IOT stimulus'.  IN a
- * real train network, any number of actions can take place.  They can detect the speed of the train and initiate
- * actions if the train is going too fast, etc.
+ * real train network, any number of actions can take place.  The speed of the train is detected from the time
+ * between sensors and it is slowed down if it goes too fast, see ChoochooSpeedMonitor.
  */
 public class ChoochooSensorManager {
 
     private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(ChoochooSensorManager.class);
     private Onem2mService onem2mService;
     private ChoochooTrainManager choochooTrainManager = null;
-    private Integer saveBlockId = 0;
-    private Integer savePosId = 0;
+    private final ChoochooSensorWriter sensorWriter;
+    private final ChoochooStatistics statistics;
+    private final ChoochooOccupancyIndex occupancyIndex = new ChoochooOccupancyIndex();
+    private final ChoochooRuleManager ruleManager;
+    private final ChoochooSensorHistory sensorHistory;
 
     private static final String CHOOCHOO_ROOT = "choochoo";
     private static final String CHOOCHOO_SENSOR = "sensor";
+    private static final String SENSOR_TARGET = "/" + CHOOCHOO_ROOT + "/" + CHOOCHOO_SENSOR;
+    private static final String SENSOR_HISTORY_FILE = "choochoo-sensor-history.ring";
 
-    public ChoochooSensorManager(Onem2mService onem2mService, ChoochooTrainManager choochooTrainManager) {
+    public ChoochooSensorManager(Onem2mService onem2mService, ChoochooTrainManager choochooTrainManager,
+                                 ChoochooRuleManager ruleManager, ChoochooStatistics statistics) {
 
         this.onem2mService = onem2mService;
         this.choochooTrainManager = choochooTrainManager;
+        this.ruleManager = ruleManager;
+        this.statistics = statistics;
+        // the sensor container only keeps its latest instance so there is no point writing the ones in between
+        this.sensorWriter = new ChoochooSensorWriter(this);
+        this.sensorWriter.registerCoalescingContainer(SENSOR_TARGET);
+        this.sensorHistory = openSensorHistory();
         LOG.info("Created ChoochooSensorManager");
     }
 
+    public void close() {
+        sensorWriter.close();
+        if (sensorHistory != null) {
+            sensorHistory.close();
+        }
+    }
+
+    private static ChoochooSensorHistory openSensorHistory() {
+        File path = new File(System.getProperty("karaf.data", "data"), SENSOR_HISTORY_FILE);
+        try {
+            return ChoochooSensorHistory.open(path, ChoochooSensorHistory.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            LOG.error("Cannot open sensor history {}, history will not be kept: {}", path, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @return the sensor event history, or null if it could not be opened
+     */
+    public ChoochooSensorHistory getSensorHistory() {
+        return sensorHistory;
+    }
+
+    ChoochooStatistics getStatistics() {
+        return statistics;
+    }
+
+    public ChoochooOccupancyIndex getOccupancyIndex() {
+        return occupancyIndex;
+    }
+
     public void initializeDataStore() {
         initializeOnem2mSensorTree();
     }
@@ -70,29 +119,70 @@ public class ChoochooSensorManager {
      * This code is called from the mqtt plugin.  It has a JSON represntation of some sensor parameters.  Don't worry
      * too much what the parameters are.  We know that the blockId, and pos can tell us which sensor in the range of
      * 1...12.  We will read the current sensor so we know if we transitioned from the train approaching a sensor, or
-     * going out of range of the sensor.
+     * going out of range of the sensor.  The oneM2M update is buffered by the ChoochooSensorWriter so the train is
+     * actuated without waiting for the data store write.
      * @param topic
+     * @param blockId
      * @param sensorId
+     * @param arrivalNanos System.nanoTime() when the mqtt message arrived, for the end to end latency
      */
-    void processSensor(String topic, Integer sensorId) {
+    void processSensor(String topic, int blockId, Integer sensorId, long arrivalNanos) {
 
+        // work out which loco tripped the sensor, see ChoochooOccupancyIndex
+        String locoId = occupancyIndex.sensorTripped(topic, blockId, choochooTrainManager.getDefaultLocoId());
 
-        String target = "/" + CHOOCHOO_ROOT + "/" + CHOOCHOO_SENSOR;
+        // time it since the last sensor and slow it down if it is going too fast
+        ChoochooSpeedMonitor speedMonitor = choochooTrainManager.getSpeedMonitor();
+        ChoochooLocoCommand correction = speedMonitor.sensorTripped(locoId, sensorId, arrivalNanos);
+
+        // update latest value of the sendorId in the onem2m db, which only keeps the latest, and keep the history
+        sensorWriter.write(SENSOR_TARGET, sensorId.toString());
+        if (sensorHistory != null) {
+            sensorHistory.append(System.currentTimeMillis(), sensorId, locoId);
+        }
 
-        // update latest value of the sendorId in the onem2m db
-        if (!createContentInstance(target, sensorId.toString())) {
-            LOG.info("processSensor: error adding {}:{}", target, sensorId.toString());
+        double speed = 0;
+        long intervalNanos = -1;
+        ChoochooSpeedMonitor.Motion motion = locoId != null ? speedMonitor.getMotion(locoId) : null;
+        if (motion != null) {
+            speed = motion.getVelocity();
+            intervalNanos = motion.getIntervalNanos();
+        }
+        ChoochooRuleTable.CompiledRule rule = ruleManager.getRuleTable().match(sensorId, locoId, speed, intervalNanos);
+        ChoochooLocoCommand command;
+        if (rule == null) {
+            LOG.debug("processSensor: sensorId: {}, loco: {}, no rule matched", sensorId, locoId);
+            command = correction;
         } else {
-            if (sensorId % 2 == 1) {
-                choochooTrainManager.setHorn(false);
-                choochooTrainManager.setLight(true);
-                LOG.info("processSensor: sensorId: {}, turn on lights, turn off horn", sensorId);
-            } else if (sensorId % 2 == 0) {
-                choochooTrainManager.setHorn(true);
-                choochooTrainManager.setLight(false);
-                LOG.info("processSensor: sensorId: {}, turn on horn, turn off lights", sensorId);
-            }
+            LOG.debug("processSensor: sensorId: {}, loco: {}, rule {}: {}", sensorId, locoId, rule.getName(),
+                    rule.getCommand());
+            // the speed correction wins over any speed the rule sets
+            command = correction != null ? rule.getCommand().merge(correction) : rule.getCommand();
+        }
+        if (command == null) {
+            return;
         }
+        // the horn, light and speed changes for this sensor all go in one POST
+        ListenableFuture<Boolean> ack = choochooTrainManager.controlLoco(locoId, command);
+        // a suppressed command never went near the controller, so it says nothing about the end to end latency
+        if (ack != null) {
+            recordEndToEnd(ack, arrivalNanos);
+        }
+    }
+
+    private void recordEndToEnd(ListenableFuture<Boolean> ack, final long arrivalNanos) {
+        Futures.addCallback(ack, new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean acked) {
+                if (acked) {
+                    statistics.recordSince(ChoochooStatistics.Stage.END_TO_END, arrivalNanos);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
     }
 
     private boolean getCse() {
@@ -220,7 +310,7 @@ public class ChoochooSensorManager {
     }
 
 
-    private boolean createContentInstance(String parent, String content) {
+    boolean createContentInstance(String parent, String content) {
 
         Onem2mContentInstanceRequestBuilder b;
 
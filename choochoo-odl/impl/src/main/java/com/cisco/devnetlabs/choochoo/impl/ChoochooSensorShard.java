@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.Arrays;
+
+/**
+ * The sensor state for one track, ie one mqtt topic.  Each track keeps its own notion of where the train was last
+ * seen so sensors on one layout do not suppress events from another.  A shard is owned by exactly one lane of the
+ * ChoochooSensorDispatcher so none of this state needs to be synchronized.
+ *
+ * Each sensor is debounced on its own with a token bucket, kept as the time the bucket will next be full (the
+ * generic cell rate algorithm) so it is one long per sensor and no allocation per reading.  Time is System.nanoTime
+ * so clock changes do not matter.
+ */
+class ChoochooSensorShard {
+
+    static final int NO_SENSOR = -1;
+    static final int MAX_SENSOR_ID = 255;
+    private static final long NEVER = Long.MIN_VALUE;
+
+    private final String topic;
+    private int saveBlockId = 0;
+    private int savePosId = 0;
+
+    private long intervalNanos;
+    private long burstNanos;
+    private int debounceGeneration = -1;
+    // per sensor id, when its bucket is full again
+    private long[] fullAtNanos = new long[16];
+
+    ChoochooSensorShard(String topic) {
+        this.topic = topic;
+        Arrays.fill(fullAtNanos, NEVER);
+    }
+
+    String getTopic() {
+        return topic;
+    }
+
+    int getDebounceGeneration() {
+        return debounceGeneration;
+    }
+
+    void setDebounceRule(ChoochooDebounceRule rule, int generation) {
+        intervalNanos = rule.getIntervalNanos();
+        burstNanos = (rule.getBurst() - 1) * intervalNanos;
+        debounceGeneration = generation;
+    }
+
+    /**
+     * Decide if a sensor reading on this track is a new event.  A pos of 0 means the train has left the sensor.
+     * @param nowNanos System.nanoTime()
+     * @return the sensorId [1...12] to process, or NO_SENSOR if the reading is debounced or a repeat
+     */
+    int accept(int blockId, int posId, long nowNanos) {
+
+        if (posId == 0) {
+            savePosId = 0;
+            return NO_SENSOR;
+        }
+
+        int sensorId = (blockId-1)*3 + posId;
+        if (sensorId < 1 || sensorId > MAX_SENSOR_ID || !takeToken(sensorId, nowNanos)) {
+            return NO_SENSOR;
+        }
+
+        // if nothing has changed, return as we have alredy handled entering this state
+        if (saveBlockId == blockId && savePosId == posId) {
+            return NO_SENSOR;
+        }
+
+        saveBlockId = blockId;
+        savePosId = posId;
+
+        return sensorId;
+    }
+
+    private boolean takeToken(int sensorId, long nowNanos) {
+
+        if (sensorId >= fullAtNanos.length) {
+            int oldLength = fullAtNanos.length;
+            fullAtNanos = Arrays.copyOf(fullAtNanos, Math.min(MAX_SENSOR_ID + 1, Math.max(sensorId + 1, oldLength * 2)));
+            Arrays.fill(fullAtNanos, oldLength, fullAtNanos.length, NEVER);
+        }
+        long fullAt = fullAtNanos[sensorId];
+        if (fullAt == NEVER || nowNanos - fullAt > 0) {
+            fullAt = nowNanos;
+        }
+        // the bucket has room while it would be full again within burst
+        if (fullAt - nowNanos > burstNanos) {
+            return false;
+        }
+        fullAtNanos[sensorId] = fullAt + intervalNanos;
+        return true;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind buffer for oneM2M content instances.  Sensor processing hands the content to write() and carries on
+ * with actuating the train; a single flusher thread writes the buffered content instances to the oneM2M data store
+ * when a container has batchSize instances waiting, or every flushIntervalMs, whichever comes first.
+ *
+ * A container can be registered as coalescing when only its latest value matters (eg the sensor container, which
+ * keeps a single instance).  Writes to a coalescing container overwrite each other while they are buffered, so only
+ * the newest value is sent at flush time.
+ */
+public class ChoochooSensorWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChoochooSensorWriter.class);
+    static final int DEFAULT_BATCH_SIZE = 32;
+    static final long DEFAULT_FLUSH_INTERVAL_MS = 200;
+
+    private final ChoochooSensorManager sensorManager;
+    private final int batchSize;
+    private final ConcurrentMap<String, ContainerBuffer> buffers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    public ChoochooSensorWriter(ChoochooSensorManager sensorManager) {
+        this(sensorManager, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MS);
+    }
+
+    public ChoochooSensorWriter(ChoochooSensorManager sensorManager, int batchSize, long flushIntervalMs) {
+
+        this.sensorManager = sensorManager;
+        this.batchSize = batchSize;
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("choochoo-onem2m-writer")
+                .setDaemon(true)
+                .build());
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushAll();
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Only the latest content instance written to the target container is kept while it is buffered.
+     */
+    public void registerCoalescingContainer(String target) {
+        buffers.putIfAbsent(target, new ContainerBuffer(target, true));
+    }
+
+    /**
+     * Buffer a content instance for the target container.  This never waits for the oneM2M data store.
+     */
+    public void write(String target, String content) {
+
+        ContainerBuffer buffer = buffers.get(target);
+        if (buffer == null) {
+            ContainerBuffer newBuffer = new ContainerBuffer(target, false);
+            buffer = buffers.putIfAbsent(target, newBuffer);
+            if (buffer == null) {
+                buffer = newBuffer;
+            }
+        }
+        if (buffer.add(content) >= batchSize) {
+            scheduleFlush(buffer);
+        }
+    }
+
+    private void scheduleFlush(final ContainerBuffer buffer) {
+        if (buffer.flushScheduled.compareAndSet(false, true)) {
+            flusher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    buffer.flushScheduled.set(false);
+                    flush(buffer);
+                }
+            });
+        }
+    }
+
+    private void flushAll() {
+        for (ContainerBuffer buffer : buffers.values()) {
+            flush(buffer);
+        }
+    }
+
+    // only ever runs on the flusher thread
+    private void flush(ContainerBuffer buffer) {
+
+        int written = 0;
+        String content;
+        while ((content = buffer.poll()) != null) {
+            long startNanos = System.nanoTime();
+            try {
+                if (!sensorManager.createContentInstance(buffer.target, content)) {
+                    LOG.info("flush: error adding {}:{}", buffer.target, content);
+                }
+                sensorManager.getStatistics().recordSince(ChoochooStatistics.Stage.ONEM2M_WRITE, startNanos);
+            } catch (RuntimeException e) {
+                // an exception escaping the periodic flush would cancel it for good
+                LOG.error("flush: exception adding {}:{}: {}", buffer.target, content, e.toString());
+            }
+            written++;
+        }
+        if (written > 0) {
+            LOG.debug("flush: wrote {} content instances to {}", written, buffer.target);
+        }
+    }
+
+    /**
+     * Write out anything still buffered and stop the flusher.
+     */
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    private static class ContainerBuffer {
+
+        private final String target;
+        private final boolean coalesce;
+        private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<String> latest = new AtomicReference<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        ContainerBuffer(String target, boolean coalesce) {
+            this.target = target;
+            this.coalesce = coalesce;
+        }
+
+        int add(String content) {
+            if (coalesce) {
+                return latest.getAndSet(content) == null ? size.incrementAndGet() : size.get();
+            }
+            pending.add(content);
+            return size.incrementAndGet();
+        }
+
+        String poll() {
+            String content = coalesce ? latest.getAndSet(null) : pending.poll();
+            if (content != null) {
+                size.decrementAndGet();
+            }
+            return content;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Works out how fast each loco is going from the time between the sensors it trips, and slows it down if it goes
+ * faster than the speed limit.  The sensors are taken to be evenly spaced around the loop, so the distance between
+ * two crossings is the number of sensors passed times the track length over the number of sensors.  On the demo
+ * track that is 76 feet and 12 sensors, so 76 inches between sensors.
+ *
+ * Only the previous crossing is kept for each loco so each sensor event is a constant amount of work.
+ *
+ * When a loco is over the limit its speed is scaled down by limit / velocity, if we know what speed it was last
+ * told to go at, otherwise it is set to the restricted speed if one is configured.  The loco is not corrected again
+ * until it has been timed over a stretch that started after the correction, so it is not slowed down twice for the
+ * same reading.  The correction is handed back to the sensor manager, which sends it in the same POST as whatever the
+ * sensor rules do.
+ */
+public class ChoochooSpeedMonitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChoochooSpeedMonitor.class);
+
+    public static final long DEFAULT_TRACK_LENGTH_INCHES = 76 * 12;
+    public static final int DEFAULT_SENSOR_COUNT = 12;
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class Config {
+        private final double sensorSpacingInches;
+        private final int sensorCount;
+        private final double speedLimit;
+        private final Integer restrictedSpeed;
+
+        private Config(long trackLengthInches, int sensorCount, double speedLimit, Integer restrictedSpeed) {
+            this.sensorSpacingInches = (double) trackLengthInches / sensorCount;
+            this.sensorCount = sensorCount;
+            this.speedLimit = speedLimit;
+            this.restrictedSpeed = restrictedSpeed;
+        }
+    }
+
+    /**
+     * The last crossing of one loco, and what it was doing at the time
+     */
+    public static final class Motion {
+        private boolean seen;
+        private int lastSensorId;
+        private long lastNanos;
+        private double velocity;
+        private double acceleration;
+        private long intervalNanos = -1;
+        private long correctedNanos;
+        private boolean corrected;
+
+        /**
+         * @return inches per second
+         */
+        public synchronized double getVelocity() {
+            return velocity;
+        }
+
+        /**
+         * @return inches per second per second
+         */
+        public synchronized double getAcceleration() {
+            return acceleration;
+        }
+
+        /**
+         * @return nanoseconds between the last two sensors, negative if the loco has only been seen once
+         */
+        public synchronized long getIntervalNanos() {
+            return intervalNanos;
+        }
+    }
+
+    private final ChoochooTrainManager trainManager;
+    private final ConcurrentMap<String, Motion> motions = new ConcurrentHashMap<>();
+    private volatile Config config = new Config(DEFAULT_TRACK_LENGTH_INCHES, DEFAULT_SENSOR_COUNT, 0, null);
+
+    public ChoochooSpeedMonitor(ChoochooTrainManager trainManager) {
+        this.trainManager = trainManager;
+    }
+
+    /**
+     * @param speedLimit inches per second, 0 or less for no limit
+     * @param restrictedSpeed the speed to set an overspeeding loco to when its current speed is not known, or null
+     *                        to leave it alone
+     */
+    public void configure(long trackLengthInches, int sensorCount, double speedLimit, Integer restrictedSpeed) {
+        if (trackLengthInches <= 0 || sensorCount <= 0) {
+            LOG.error("configure: ignoring track length {}, sensor count {}", trackLengthInches, sensorCount);
+            return;
+        }
+        config = new Config(trackLengthInches, sensorCount, speedLimit, restrictedSpeed);
+        motions.clear();
+        LOG.info("configure: track length {}in, {} sensors, speed limit {}in/s, restricted speed {}",
+                trackLengthInches, sensorCount, speedLimit, restrictedSpeed);
+    }
+
+    /**
+     * Time a loco from its previous crossing to this one, and work out how to slow it down if it is over the limit.
+     * @param sensorId 1 ... sensor count
+     * @param nanos System.nanoTime() of the crossing
+     * @return the speed correction to send to the loco, or null if it needs none
+     */
+    public ChoochooLocoCommand sensorTripped(String locoId, int sensorId, long nanos) {
+
+        if (locoId == null) {
+            return null;
+        }
+        Config c = config;
+        if (sensorId < 1 || sensorId > c.sensorCount) {
+            return null;
+        }
+        Motion motion = motions.get(locoId);
+        if (motion == null) {
+            Motion newMotion = new Motion();
+            motion = motions.putIfAbsent(locoId, newMotion);
+            if (motion == null) {
+                motion = newMotion;
+            }
+        }
+
+        Integer correction;
+        double velocity;
+        synchronized (motion) {
+            if (!motion.seen) {
+                motion.seen = true;
+                motion.lastSensorId = sensorId;
+                motion.lastNanos = nanos;
+                return null;
+            }
+            int sensorsPassed = (sensorId - motion.lastSensorId + c.sensorCount) % c.sensorCount;
+            long elapsedNanos = nanos - motion.lastNanos;
+            if (sensorsPassed == 0 || elapsedNanos <= 0) {
+                return null;
+            }
+            double seconds = elapsedNanos / NANOS_PER_SECOND;
+            velocity = sensorsPassed * c.sensorSpacingInches / seconds;
+            motion.acceleration = (velocity - motion.velocity) / seconds;
+            motion.velocity = velocity;
+            motion.intervalNanos = elapsedNanos;
+            // the stretch that ends at the correction's own crossing started before it, so it does not count
+            boolean timedSinceCorrection = !motion.corrected || motion.lastNanos - motion.correctedNanos > 0;
+            motion.lastSensorId = sensorId;
+            motion.lastNanos = nanos;
+
+            if (c.speedLimit <= 0 || velocity <= c.speedLimit || !timedSinceCorrection) {
+                return null;
+            }
+            correction = correctedSpeed(trainManager.getLocoSpeed(locoId), velocity, c);
+            if (correction == null) {
+                return null;
+            }
+            motion.corrected = true;
+            motion.correctedNanos = nanos;
+        }
+
+        LOG.info("sensorTripped: loco {} at {}in/s is over the {}in/s limit, setting speed {}",
+                locoId, velocity, c.speedLimit, correction);
+        return new ChoochooLocoCommand().setSpeed(correction);
+    }
+
+    private static Integer correctedSpeed(Integer speed, double velocity, Config c) {
+        if (speed == null) {
+            return c.restrictedSpeed;
+        }
+        return (int) Math.floor(speed * c.speedLimit / velocity);
+    }
+
+    /**
+     * @return the motion of the loco, or null if it has not been seen
+     */
+    public Motion getMotion(String locoId) {
+        return motions.get(locoId);
+    }
+
+    public void clear() {
+        motions.clear();
+    }
+}
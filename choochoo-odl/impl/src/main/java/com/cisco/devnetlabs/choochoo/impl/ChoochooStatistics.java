@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControllerStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControllerStatisticsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.SensorStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.SensorStatisticsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainCacheStatistics;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainCacheStatisticsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.controller.statistics.Controller;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.controller.statistics.ControllerBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.controller.statistics.ControllerKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.sensor.statistics.StageLatency;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.sensor.statistics.StageLatencyBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.sensor.statistics.StageLatencyKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters and per stage latency histograms for the sensor pipeline.  The pipeline records into them directly; a
+ * background task copies a snapshot into the operational sensor-statistics container every few seconds so it can be
+ * read over RESTCONF without the hot path ever touching the data store.
+ */
+public class ChoochooStatistics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChoochooStatistics.class);
+    private static final InstanceIdentifier<SensorStatistics> SENSOR_STATISTICS_IID =
+            InstanceIdentifier.builder(SensorStatistics.class).build();
+    private static final InstanceIdentifier<TrainCacheStatistics> TRAIN_CACHE_STATISTICS_IID =
+            InstanceIdentifier.builder(TrainCacheStatistics.class).build();
+    private static final InstanceIdentifier<ControllerStatistics> CONTROLLER_STATISTICS_IID =
+            InstanceIdentifier.builder(ControllerStatistics.class).build();
+    private static final long PUBLISH_INTERVAL_SECONDS = 5;
+
+    public enum Stage {
+        DECODE("decode"),
+        THROTTLE("throttle"),
+        ONEM2M_WRITE("onem2m-write"),
+        HTTP_COMMAND("http-command"),
+        END_TO_END("end-to-end");
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * The requests to one train controller address
+     */
+    static final class ControllerCounters {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong httpErrors = new AtomicLong();
+        private final AtomicLong connectFailures = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final ChoochooLatencyHistogram latency = new ChoochooLatencyHistogram();
+
+        private void reset() {
+            requests.set(0);
+            httpErrors.set(0);
+            connectFailures.set(0);
+            timeouts.set(0);
+            failures.set(0);
+            latency.reset();
+        }
+    }
+
+    public enum ControllerFailure {
+        CONNECT,
+        TIMEOUT,
+        OTHER
+    }
+
+    private final DataBroker dataBroker;
+    private final ConcurrentMap<String, ControllerCounters> controllers = new ConcurrentHashMap<>();
+    private final ChoochooLatencyHistogram[] histograms = new ChoochooLatencyHistogram[Stage.values().length];
+    private final AtomicLong messagesAccepted = new AtomicLong();
+    private final AtomicLong messagesThrottled = new AtomicLong();
+    private final AtomicLong messagesDropped = new AtomicLong();
+    private final AtomicLong messagesOverflowed = new AtomicLong();
+    private final AtomicLong messagesCoalesced = new AtomicLong();
+    private final AtomicLong ingestBlocked = new AtomicLong();
+    private final AtomicLong commandsSuppressed = new AtomicLong();
+    private volatile ChoochooTrainCache trainCache;
+    private volatile ChoochooSensorDispatcher sensorDispatcher;
+    private ScheduledExecutorService publisher;
+
+    public ChoochooStatistics(DataBroker dataBroker) {
+        this.dataBroker = dataBroker;
+        for (Stage stage : Stage.values()) {
+            histograms[stage.ordinal()] = new ChoochooLatencyHistogram();
+        }
+    }
+
+    public void start() {
+        publisher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("choochoo-statistics")
+                .setDaemon(true)
+                .build());
+        publisher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        }, PUBLISH_INTERVAL_SECONDS, PUBLISH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public void close() {
+        if (publisher != null) {
+            publisher.shutdownNow();
+        }
+    }
+
+    void setTrainCache(ChoochooTrainCache trainCache) {
+        this.trainCache = trainCache;
+    }
+
+    void setSensorDispatcher(ChoochooSensorDispatcher sensorDispatcher) {
+        this.sensorDispatcher = sensorDispatcher;
+    }
+
+    public ChoochooLatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the stage started
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        histograms[stage.ordinal()].recordNanos(System.nanoTime() - startNanos);
+    }
+
+    private ControllerCounters controller(String address) {
+        ControllerCounters counters = controllers.get(address);
+        if (counters == null) {
+            ControllerCounters newCounters = new ControllerCounters();
+            counters = controllers.putIfAbsent(address, newCounters);
+            if (counters == null) {
+                counters = newCounters;
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * A train controller responded, with any status
+     * @param address host:port of the controller
+     * @param startNanos System.nanoTime() when the request was sent
+     */
+    public void controllerResponded(String address, int status, long startNanos) {
+        ControllerCounters counters = controller(address);
+        counters.requests.incrementAndGet();
+        counters.latency.recordNanos(System.nanoTime() - startNanos);
+        if (status >= 400) {
+            counters.httpErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forget a train controller that is no longer configured
+     * @param address host:port of the controller
+     */
+    public void removeController(String address) {
+        controllers.remove(address);
+    }
+
+    /**
+     * A request to a train controller got no response
+     */
+    public void controllerFailed(String address, ControllerFailure failure) {
+        ControllerCounters counters = controller(address);
+        counters.requests.incrementAndGet();
+        switch (failure) {
+            case CONNECT:
+                counters.connectFailures.incrementAndGet();
+                break;
+            case TIMEOUT:
+                counters.timeouts.incrementAndGet();
+                break;
+            default:
+                counters.failures.incrementAndGet();
+                break;
+        }
+    }
+
+    public void messageAccepted() {
+        messagesAccepted.incrementAndGet();
+    }
+
+    public void messageThrottled() {
+        messagesThrottled.incrementAndGet();
+    }
+
+    public void messageDropped() {
+        messagesDropped.incrementAndGet();
+    }
+
+    public void messageOverflowed() {
+        messagesOverflowed.incrementAndGet();
+    }
+
+    public void messageCoalesced() {
+        messagesCoalesced.incrementAndGet();
+    }
+
+    public void ingestBlocked() {
+        ingestBlocked.incrementAndGet();
+    }
+
+    /**
+     * A loco command was not sent as there was nothing in it to change; it is not an end-to-end sample
+     */
+    public void commandSuppressed() {
+        commandsSuppressed.incrementAndGet();
+    }
+
+    public void reset() {
+        messagesAccepted.set(0);
+        messagesThrottled.set(0);
+        messagesDropped.set(0);
+        messagesOverflowed.set(0);
+        messagesCoalesced.set(0);
+        ingestBlocked.set(0);
+        commandsSuppressed.set(0);
+        for (ChoochooLatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        ChoochooTrainCache cache = trainCache;
+        if (cache != null) {
+            cache.resetStatistics();
+        }
+        for (ControllerCounters counters : controllers.values()) {
+            counters.reset();
+        }
+        publish();
+    }
+
+    SensorStatistics snapshot() {
+
+        List<StageLatency> stageLatencies = new ArrayList<>(histograms.length);
+        for (Stage stage : Stage.values()) {
+            ChoochooLatencyHistogram histogram = histograms[stage.ordinal()];
+            stageLatencies.add(new StageLatencyBuilder()
+                    .setKey(new StageLatencyKey(stage.getName()))
+                    .setStage(stage.getName())
+                    .setCount(BigInteger.valueOf(histogram.getCount()))
+                    .setP50Us(BigInteger.valueOf(histogram.getPercentile(50)))
+                    .setP90Us(BigInteger.valueOf(histogram.getPercentile(90)))
+                    .setP99Us(BigInteger.valueOf(histogram.getPercentile(99)))
+                    .setP999Us(BigInteger.valueOf(histogram.getPercentile(99.9)))
+                    .setMaxUs(BigInteger.valueOf(histogram.getMax()))
+                    .build());
+        }
+        ChoochooSensorDispatcher dispatcher = sensorDispatcher;
+        return new SensorStatisticsBuilder()
+                .setMessagesAccepted(BigInteger.valueOf(messagesAccepted.get()))
+                .setMessagesThrottled(BigInteger.valueOf(messagesThrottled.get()))
+                .setMessagesDropped(BigInteger.valueOf(messagesDropped.get()))
+                .setMessagesOverflowed(BigInteger.valueOf(messagesOverflowed.get()))
+                .setMessagesCoalesced(BigInteger.valueOf(messagesCoalesced.get()))
+                .setIngestBlocked(BigInteger.valueOf(ingestBlocked.get()))
+                .setCommandsSuppressed(BigInteger.valueOf(commandsSuppressed.get()))
+                .setQueueDepth(dispatcher != null ? (long) dispatcher.getQueueDepth() : 0L)
+                .setQueueCapacity(dispatcher != null ? (long) dispatcher.getQueueCapacity() : 0L)
+                .setStageLatency(stageLatencies)
+                .build();
+    }
+
+    ControllerStatistics controllerSnapshot() {
+
+        List<Controller> controllerList = new ArrayList<>(controllers.size());
+        for (Map.Entry<String, ControllerCounters> entry : controllers.entrySet()) {
+            ControllerCounters counters = entry.getValue();
+            controllerList.add(new ControllerBuilder()
+                    .setKey(new ControllerKey(entry.getKey()))
+                    .setAddress(entry.getKey())
+                    .setRequests(BigInteger.valueOf(counters.requests.get()))
+                    .setHttpErrors(BigInteger.valueOf(counters.httpErrors.get()))
+                    .setConnectFailures(BigInteger.valueOf(counters.connectFailures.get()))
+                    .setTimeouts(BigInteger.valueOf(counters.timeouts.get()))
+                    .setFailures(BigInteger.valueOf(counters.failures.get()))
+                    .setP50Us(BigInteger.valueOf(counters.latency.getPercentile(50)))
+                    .setP99Us(BigInteger.valueOf(counters.latency.getPercentile(99)))
+                    .setMaxUs(BigInteger.valueOf(counters.latency.getMax()))
+                    .build());
+        }
+        return new ControllerStatisticsBuilder().setController(controllerList).build();
+    }
+
+    private void publish() {
+        try {
+            WriteTransaction tx = dataBroker.newWriteOnlyTransaction();
+            tx.put(LogicalDatastoreType.OPERATIONAL, SENSOR_STATISTICS_IID, snapshot());
+            tx.put(LogicalDatastoreType.OPERATIONAL, CONTROLLER_STATISTICS_IID, controllerSnapshot());
+            ChoochooTrainCache cache = trainCache;
+            if (cache != null) {
+                tx.put(LogicalDatastoreType.OPERATIONAL, TRAIN_CACHE_STATISTICS_IID, new TrainCacheStatisticsBuilder()
+                        .setHits(BigInteger.valueOf(cache.getHits()))
+                        .setMisses(BigInteger.valueOf(cache.getMisses()))
+                        .setEvictions(BigInteger.valueOf(cache.getEvictions()))
+                        .setSize(BigInteger.valueOf(cache.getSize()))
+                        .build());
+            }
+            tx.submit();
+        } catch (RuntimeException e) {
+            LOG.error("publish: cannot write sensor-statistics: {}", e.toString());
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.DataObjectModification;
+import org.opendaylight.controller.md.sal.binding.api.ReadOnlyTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.controller.md.sal.common.api.data.ReadFailedException;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainTopology;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.Train;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.TrainKey;
+import org.opendaylight.yangtools.yang.binding.DataObject;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The trains in the operational train-topology, kept in memory so discovery and train control do not have to go to
+ * the data store.  The ChoochooTrainManager feeds it every change to the operational train-topology.  Reads that
+ * miss go to the data store with a read-only transaction and fill the cache.
+ *
+ * The number of trains held is bounded.  While nothing has been evicted the cache holds every train, and the whole
+ * inventory can be served from memory; once a train has been evicted the inventory is read from the data store
+ * again.
+ */
+class ChoochooTrainCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChoochooTrainCache.class);
+    static final long DEFAULT_MAXIMUM_SIZE = 10000;
+    private static final InstanceIdentifier<TrainTopology> TRAIN_TOPOLOGY_IID =
+            InstanceIdentifier.create(TrainTopology.class);
+
+    private final DataBroker dataBroker;
+    private final long maximumSize;
+    private final Cache<String, Train> trains;
+    // set when the cache holds every train in the data store
+    private volatile boolean complete = false;
+    // bumped by every change notification so a load racing with one is not trusted
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    ChoochooTrainCache(DataBroker dataBroker, long maximumSize) {
+        this.dataBroker = dataBroker;
+        this.maximumSize = maximumSize;
+        this.trains = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .removalListener(new RemovalListener<String, Train>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Train> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            complete = false;
+                            evictions.incrementAndGet();
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return the train, or null if it is not in the data store
+     */
+    Train getTrain(String locoId) {
+        Train train = trains.getIfPresent(locoId);
+        if (train != null) {
+            hits.incrementAndGet();
+            return train;
+        }
+        if (complete) {
+            // every train is here, so it does not exist
+            hits.incrementAndGet();
+            return null;
+        }
+        misses.incrementAndGet();
+        long startGeneration = generation.get();
+        train = read(TRAIN_TOPOLOGY_IID.child(Train.class, new TrainKey(locoId)));
+        if (train != null && generation.get() == startGeneration) {
+            trains.put(locoId, train);
+        }
+        return train;
+    }
+
+    /**
+     * @return every train in the data store
+     */
+    Collection<Train> getTrains() {
+        if (complete) {
+            hits.incrementAndGet();
+            return new ArrayList<>(trains.asMap().values());
+        }
+        misses.incrementAndGet();
+        long startGeneration = generation.get();
+        TrainTopology tt = read(TRAIN_TOPOLOGY_IID);
+        List<Train> trainList = tt != null && tt.getTrain() != null ? tt.getTrain() : new ArrayList<Train>();
+        if (generation.get() == startGeneration) {
+            load(trainList);
+        }
+        return trainList;
+    }
+
+    /**
+     * Apply a change to the operational train-topology
+     */
+    void apply(DataObjectModification<TrainTopology> rootNode) {
+        generation.incrementAndGet();
+        switch (rootNode.getModificationType()) {
+            case WRITE:
+                TrainTopology tt = rootNode.getDataAfter();
+                load(tt.getTrain() != null ? tt.getTrain() : new ArrayList<Train>());
+                break;
+            case SUBTREE_MODIFIED:
+                for (DataObjectModification<? extends DataObject> child : rootNode.getModifiedChildren()) {
+                    if (child.getDataType() != Train.class) {
+                        continue;
+                    }
+                    if (child.getModificationType() == DataObjectModification.ModificationType.DELETE) {
+                        trains.invalidate(((Train) child.getDataBefore()).getLocoId());
+                    } else {
+                        Train train = (Train) child.getDataAfter();
+                        trains.put(train.getLocoId(), train);
+                    }
+                }
+                break;
+            case DELETE:
+                trains.invalidateAll();
+                complete = true;
+                break;
+            default:
+                break;
+        }
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet();
+        complete = false;
+        trains.invalidateAll();
+    }
+
+    private void load(List<Train> trainList) {
+        complete = false;
+        trains.invalidateAll();
+        // the limit is split between the cache's segments, so trains can be evicted before there are maximumSize
+        // of them; the removal listener runs on this thread, so any eviction during the puts shows up here
+        long evictionsBefore = evictions.get();
+        for (Train train : trainList) {
+            trains.put(train.getLocoId(), train);
+        }
+        complete = trainList.size() <= maximumSize && evictions.get() == evictionsBefore;
+    }
+
+    private <T extends DataObject> T read(InstanceIdentifier<T> iid) {
+        ReadOnlyTransaction tx = dataBroker.newReadOnlyTransaction();
+        try {
+            Optional<T> optionalDataObject = tx.read(LogicalDatastoreType.OPERATIONAL, iid).checkedGet();
+            if (optionalDataObject != null && optionalDataObject.isPresent()) {
+                return optionalDataObject.get();
+            }
+        } catch (ReadFailedException e) {
+            LOG.error("read: failed to read {}: {}", iid, e.toString());
+        } finally {
+            tx.close();
+        }
+        return null;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    long getSize() {
+        return trains.size();
+    }
+
+    void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+}
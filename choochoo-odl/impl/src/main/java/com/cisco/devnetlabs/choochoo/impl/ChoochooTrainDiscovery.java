@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2015 Cisco Systems, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package com.cisco.devnetlabs.choochoo.impl;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.eclipse.jetty.client.ContentExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically polls the train controller's /locos for the train inventory.  Each poll is a conditional GET using
+ * the ETag and Last-Modified the controller last returned; a 304, or a body whose hash matches the last one we
+ * reconciled, is dropped without parsing it or touching the data store.  When the controller is down or slow to
+ * answer the poll interval backs off exponentially up to MAX_INTERVAL_SECONDS, and drops back to the configured
+ * interval as soon as it answers promptly again.
+ *
+ * There is one of these per train controller.  They all share the train manager's discovery thread, and all of the
+ * polling state is only touched on it; as the requests are asynchronous the controllers are still polled in
+ * parallel.
+ */
+public class ChoochooTrainDiscovery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChoochooTrainDiscovery.class);
+    static final long DEFAULT_INTERVAL_SECONDS = 30;
+    private static final long MAX_INTERVAL_SECONDS = 300;
+    private static final long SLOW_RESPONSE_MS = 2000;
+
+    private final ChoochooTrainManager trainManager;
+    private final ChoochooTrainManager.ChooChooHttpClient client;
+    private final ScheduledExecutorService scheduler;
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            nextPoll = null;
+            poll();
+        }
+    };
+
+    private String controller;
+    private long intervalSeconds;
+    private long delaySeconds;
+    private String etag;
+    private String lastModified;
+    private String contentHash;
+    private ScheduledFuture<?> nextPoll;
+    private boolean pollInFlight;
+    private int generation;
+
+    /**
+     * @param scheduler must be single threaded
+     */
+    public ChoochooTrainDiscovery(ChoochooTrainManager trainManager,
+                                  ChoochooTrainManager.ChooChooHttpClient client, ScheduledExecutorService scheduler) {
+        this.trainManager = trainManager;
+        this.client = client;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Discover the trains on controller now, then every intervalSeconds.  An interval of 0 discovers once.
+     */
+    public void start(final String controller, final long intervalSeconds) {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                reset(controller, intervalSeconds);
+                poll();
+            }
+        });
+    }
+
+    public void stop() {
+        scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                reset(null, 0);
+            }
+        });
+    }
+
+    /**
+     * Poll now rather than waiting for the next scheduled poll.
+     */
+    public void discoverNow() {
+        scheduler.execute(pollTask);
+    }
+
+    private void reset(String controller, long intervalSeconds) {
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+            nextPoll = null;
+        }
+        // a poll still in flight belongs to the old generation and its response is ignored
+        generation++;
+        pollInFlight = false;
+        this.controller = controller;
+        this.intervalSeconds = intervalSeconds;
+        this.delaySeconds = intervalSeconds;
+        etag = null;
+        lastModified = null;
+        contentHash = null;
+    }
+
+    private void poll() {
+
+        if (controller == null || pollInFlight) {
+            return;
+        }
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+            nextPoll = null;
+        }
+        pollInFlight = true;
+
+        final int pollGeneration = generation;
+        final long startNanos = System.nanoTime();
+        String url = "http://" + controller + "/locos";
+        Map<String, String> headers = new HashMap<>();
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        LOG.debug("poll: GET {} {}", url, headers);
+
+        Futures.addCallback(client.sendRequest(url, "GET", null, headers), new FutureCallback<ContentExchange>() {
+            @Override
+            public void onSuccess(ContentExchange httpResponse) {
+                if (pollGeneration == generation) {
+                    pollInFlight = false;
+                    handleResponse(httpResponse, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (pollGeneration == generation) {
+                    pollInFlight = false;
+                    LOG.error("poll: error retrieving trains from controller: {}: {}", controller, t.toString());
+                    backOff();
+                }
+            }
+        }, scheduler);
+    }
+
+    private void handleResponse(ContentExchange httpResponse, long elapsedMs) {
+
+        int rsc = httpResponse.getResponseStatus();
+        if (rsc == 304) {
+            LOG.debug("handleResponse: train inventory on {} not modified", controller);
+        } else if (rsc >= 200 && rsc < 300) {
+            String content;
+            try {
+                content = httpResponse.getResponseContent();
+            } catch (UnsupportedEncodingException e) {
+                LOG.error("handleResponse: get http content exception: {}", e.toString());
+                backOff();
+                return;
+            }
+            String newEtag = httpResponse.getResponseFields().getStringField("ETag");
+            String newLastModified = httpResponse.getResponseFields().getStringField("Last-Modified");
+            String hash = content == null ? null : DigestUtils.md5Hex(content);
+            if (hash != null && hash.equals(contentHash)) {
+                LOG.debug("handleResponse: train inventory on {} unchanged", controller);
+                etag = newEtag;
+                lastModified = newLastModified;
+            } else if (content != null) {
+                LOG.debug("handleResponse: train inventory on {}: {}", controller, content);
+                reconcile(content, newEtag, newLastModified, hash);
+            }
+        } else {
+            LOG.error("handleResponse: error retrieving trains from controller: {}, httpStatusCode: {}",
+                    controller, rsc);
+            backOff();
+            return;
+        }
+
+        if (elapsedMs > SLOW_RESPONSE_MS) {
+            LOG.info("handleResponse: controller {} took {}ms to answer, backing off", controller, elapsedMs);
+            backOff();
+        } else {
+            delaySeconds = intervalSeconds;
+            scheduleNextPoll();
+        }
+    }
+
+    /**
+     * Only remember what was reconciled once it is in the data store, otherwise a failed commit would have every later
+     * poll answered with a 304 or a matching hash, and the inventory would not be applied until it changed.
+     */
+    private void reconcile(String content, final String newEtag, final String newLastModified, final String hash) {
+        final int pollGeneration = generation;
+        Futures.addCallback(trainManager.handleTrainInventory(controller, content), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                if (pollGeneration == generation) {
+                    etag = newEtag;
+                    lastModified = newLastModified;
+                    contentHash = hash;
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (pollGeneration == generation) {
+                    LOG.error("reconcile: train inventory from {} not applied, will fetch it again: {}", controller,
+                            t.toString());
+                    etag = null;
+                    lastModified = null;
+                    contentHash = null;
+                }
+            }
+        }, scheduler);
+    }
+
+    private void backOff() {
+        long base = intervalSeconds > 0 ? intervalSeconds : DEFAULT_INTERVAL_SECONDS;
+        delaySeconds = Math.min(Math.max(delaySeconds * 2, base), MAX_INTERVAL_SECONDS);
+        scheduleNextPoll();
+    }
+
+    private void scheduleNextPoll() {
+        if (controller == null || delaySeconds <= 0) {
+            return;
+        }
+        nextPoll = scheduler.schedule(pollTask, delaySeconds, TimeUnit.SECONDS);
+    }
+}
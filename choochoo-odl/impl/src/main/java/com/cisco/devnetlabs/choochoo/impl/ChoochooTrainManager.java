@@ -8,30 +8,52 @@
 
 package com.cisco.devnetlabs.choochoo.impl;
 
-import com.google.common.base.Optional;
-import com.google.common.util.concurrent.CheckedFuture;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Monitor;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.HttpExchange;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.opendaylight.controller.md.sal.binding.api.*;
 import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
-import org.opendaylight.controller.md.sal.common.api.data.ReadFailedException;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainInput;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainOutput;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainsInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainsOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.ControlTrainsOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.control.trains.input.TrainCommand;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.control.trains.output.TrainResult;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.control.trains.output.TrainResultBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainTopology;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainTopologyBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.control.parms.list.ControlParm;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.Train;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.TrainBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.TrainControllers;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.TrainKey;
 import org.opendaylight.yangtools.concepts.ListenerRegistration;
 import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
@@ -46,25 +68,71 @@ public class ChoochooTrainManager implements DataTreeChangeListener<TrainTopolog
 
     private static final Logger LOG = LoggerFactory.getLogger(ChoochooTrainManager.class);
     private ChooChooHttpClient client;
+    // one per train controller, all polling on the one discovery thread
+    private final ScheduledExecutorService discoveryScheduler;
+    private final ConcurrentMap<String, ChoochooTrainDiscovery> discoveries = new ConcurrentHashMap<>();
+    private final ChoochooSpeedMonitor speedMonitor;
     private DataBroker dataBroker;
     private Monitor crudMonitor;
-    private String trainControllerIpaddress = null;
-    private String trainDefaultLocoId = null;
+    private volatile String trainControllerIpaddress = null;
+    private volatile String trainDefaultLocoId = null;
+    // the controller that gets locos no controller has reported, and its http://controller/loco/, so a command only
+    // has to append the loco id
+    private volatile String defaultController = null;
+    private volatile String locoUrlPrefix = null;
+    // locoId -> url prefix of the controller that reported it
+    private final ConcurrentMap<String, String> locoUrlPrefixes = new ConcurrentHashMap<>();
+    // in configuration order; when two report the same loco the first one keeps it
+    private volatile List<String> controllerOrder = Collections.emptyList();
+    // locoId@controller of the conflicts already logged
+    private final Set<String> loggedConflicts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
     private static final InstanceIdentifier<TrainTopology> TRAIN_TOPOLOGY_IID =
             InstanceIdentifier.builder(TrainTopology.class).build();
     private ListenerRegistration<ChoochooTrainManager> dcReg;
+    private ListenerRegistration<ChoochooTrainManager> operationalReg;
+    private final ChoochooTrainCache trainCache;
+    private final ConcurrentMap<String, ChoochooLocoState> locoStates = new ConcurrentHashMap<>();
+    private final ChoochooStatistics statistics;
+    private static final int DEFAULT_MAX_CONCURRENCY = 16;
+    static final long DEFAULT_COMMAND_TIMEOUT_MS = 5000;
+    private volatile long commandTimeoutMs = DEFAULT_COMMAND_TIMEOUT_MS;
+    private final ScheduledThreadPoolExecutor timeoutScheduler;
 
-    public ChoochooTrainManager(DataBroker dataBroker) {
+    public ChoochooTrainManager(DataBroker dataBroker, ChoochooStatistics statistics) {
 
         this.dataBroker = dataBroker;
+        this.statistics = statistics;
         this.crudMonitor = new Monitor();
         client = new ChooChooHttpClient();
+        discoveryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("choochoo-train-discovery")
+                .setDaemon(true)
+                .build());
+        speedMonitor = new ChoochooSpeedMonitor(this);
+        timeoutScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                .setNameFormat("choochoo-command-timeout")
+                .setDaemon(true)
+                .build());
+        timeoutScheduler.setRemoveOnCancelPolicy(true);
+        trainCache = new ChoochooTrainCache(dataBroker, ChoochooTrainCache.DEFAULT_MAXIMUM_SIZE);
+        statistics.setTrainCache(trainCache);
         dcReg = dataBroker.registerDataTreeChangeListener(new DataTreeIdentifier<>(LogicalDatastoreType.CONFIGURATION,
                 TRAIN_TOPOLOGY_IID), this);
+        // the discovered trains, to keep the train cache up to date
+        operationalReg = dataBroker.registerDataTreeChangeListener(new DataTreeIdentifier<>(
+                LogicalDatastoreType.OPERATIONAL, TRAIN_TOPOLOGY_IID), this);
         LOG.info("Created ChoochooTrainManager");
     }
     
     public void close() throws Exception {
+        dcReg.close();
+        operationalReg.close();
+        for (ChoochooTrainDiscovery discovery : discoveries.values()) {
+            discovery.stop();
+        }
+        discoveries.clear();
+        discoveryScheduler.shutdownNow();
+        timeoutScheduler.shutdownNow();
         client.stop();
         LOG.info("ChoochooTrainManager Closed");
     }
@@ -104,6 +172,10 @@ public class ChoochooTrainManager implements DataTreeChangeListener<TrainTopolog
     public void onDataTreeChanged(Collection<DataTreeModification<TrainTopology>> changes) {
         LOG.info("ChoochooProvider: OnDataTreeChanged(TrainTopology) called");
         for (DataTreeModification<TrainTopology> change : changes) {
+            if (change.getRootPath().getDatastoreType() == LogicalDatastoreType.OPERATIONAL) {
+                trainCache.apply(change.getRootNode());
+                continue;
+            }
             switch (change.getRootNode().getModificationType()) {
                 case WRITE:
                 case SUBTREE_MODIFIED:
@@ -126,161 +198,261 @@ public class ChoochooTrainManager implements DataTreeChangeListener<TrainTopolog
         LOG.info("trainControllerChanged: {}", tt.getTrainController());
         trainControllerIpaddress = tt.getTrainController();
         trainDefaultLocoId = tt.getDefaultLocoId();
-        getTrainsFromServer();
+        locoStates.clear();
+        configureSpeedMonitor(tt);
+        commandTimeoutMs = tt.getCommandTimeout() != null ? tt.getCommandTimeout() : DEFAULT_COMMAND_TIMEOUT_MS;
+
+        Set<String> controllers = new LinkedHashSet<>();
+        if (trainControllerIpaddress != null) {
+            controllers.add(trainControllerIpaddress);
+        }
+        if (tt.getTrainControllers() != null) {
+            for (TrainControllers trainControllers : tt.getTrainControllers()) {
+                if (trainControllers.getAddress() != null) {
+                    controllers.add(trainControllers.getAddress());
+                }
+            }
+        }
+        // with no train-controller a lone controller in the list gets the locos it has not reported yet
+        String newDefaultController = trainControllerIpaddress;
+        if (newDefaultController == null && controllers.size() == 1) {
+            newDefaultController = controllers.iterator().next();
+        }
+        defaultController = newDefaultController;
+        locoUrlPrefix = newDefaultController != null ? locoUrlPrefix(newDefaultController) : null;
+        loggedConflicts.clear();
 
+        Long interval = tt.getDiscoveryInterval();
+        setControllers(controllers, interval != null ? interval : ChoochooTrainDiscovery.DEFAULT_INTERVAL_SECONDS);
     }
 
     public void trainControllerDeleted() {
 
         LOG.info("trainControllerDeleted:");
         trainControllerIpaddress = null;
+        defaultController = null;
+        locoUrlPrefix = null;
         trainDefaultLocoId = null;
+        locoStates.clear();
+        speedMonitor.clear();
+        setControllers(Collections.<String>emptySet(), 0);
     }
 
-    private TrainTopology readTrainTopology(LogicalDatastoreType ldsType) {
-
-        ReadWriteTransaction tx = dataBroker.newReadWriteTransaction();
-
-        InstanceIdentifier<TrainTopology> iid = InstanceIdentifier.create(TrainTopology.class);
-
-        TrainTopology tt = null;
-
-        Optional<TrainTopology> optionalDataObject;
-        CheckedFuture<Optional<TrainTopology>, ReadFailedException> submitFuture = tx.read(ldsType, iid);
-        try {
-            optionalDataObject = submitFuture.checkedGet();
-            if (optionalDataObject != null && optionalDataObject.isPresent()) {
-                tt = optionalDataObject.get();
+    /**
+     * Poll each of the controllers, stop polling any others, and forget the trains the others reported.
+     */
+    private void setControllers(Set<String> controllers, long intervalSeconds) {
+        controllerOrder = new ArrayList<>(controllers);
+        Iterator<Map.Entry<String, ChoochooTrainDiscovery>> it = discoveries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ChoochooTrainDiscovery> entry = it.next();
+            if (!controllers.contains(entry.getKey())) {
+                it.remove();
+                entry.getValue().stop();
+                final String controller = entry.getKey();
+                LOG.info("setControllers: no longer polling train controller {}", controller);
+                statistics.removeController(statisticsAddress(controller));
+                // queued behind the stop, so a poll that was in flight cannot bring the trains back
+                discoveryScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleTrainInventory(controller, "[]");
+                    }
+                });
             }
-        } catch (ReadFailedException e) {
-            LOG.error("failed to ....", e);
         }
-
-        LOG.info("read: traintopology");
-
-        return tt;
+        for (String controller : controllers) {
+            ChoochooTrainDiscovery discovery = discoveries.get(controller);
+            if (discovery == null) {
+                discovery = new ChoochooTrainDiscovery(this, client, discoveryScheduler);
+                discoveries.put(controller, discovery);
+            }
+            discovery.start(controller, intervalSeconds);
+        }
     }
 
-    private Train readTrain(String locoId, LogicalDatastoreType ldsType) {
-
-        ReadWriteTransaction tx = dataBroker.newReadWriteTransaction();
-
-        InstanceIdentifier<Train> iid = InstanceIdentifier.create(TrainTopology.class)
-                .child(Train.class, new TrainKey(locoId));
+    private static String locoUrlPrefix(String controller) {
+        return "http://" + controller + "/loco/";
+    }
 
-        Train train = null;
+    /**
+     * The statistics are kept by the host:port jetty sends the requests to
+     */
+    private static String statisticsAddress(String controller) {
+        URI uri = URI.create("http://" + controller);
+        return uri.getHost() + ":" + (uri.getPort() > 0 ? uri.getPort() : 80);
+    }
 
-        Optional<Train> optionalDataObject;
-        CheckedFuture<Optional<Train>, ReadFailedException> submitFuture = tx.read(ldsType, iid);
-        try {
-            optionalDataObject = submitFuture.checkedGet();
-            if (optionalDataObject != null && optionalDataObject.isPresent()) {
-                train = optionalDataObject.get();
-            }
-        } catch (ReadFailedException e) {
-            LOG.error("failed to ....", e);
-        }
+    /**
+     * @return the controller a train belongs to; trains discovered before they were tagged belong to the default one
+     */
+    private String controllerOf(Train train) {
+        return train.getTrainController() != null ? train.getTrainController() : defaultController;
+    }
 
-        LOG.info("read: train: {}", locoId);
+    /**
+     * @return true if controller comes before other in the configuration, or other is no longer configured
+     */
+    private boolean isEarlier(String controller, String other) {
+        List<String> order = controllerOrder;
+        int index = order.indexOf(controller);
+        int otherIndex = order.indexOf(other);
+        return index >= 0 && (otherIndex < 0 || index < otherIndex);
+    }
 
-        return train;
+    private void configureSpeedMonitor(TrainTopology tt) {
+        Long trackLength = tt.getTrackLength();
+        Short sensorCount = tt.getSensorCount();
+        Long speedLimit = tt.getSpeedLimit();
+        Short restrictedSpeed = tt.getRestrictedSpeed();
+        speedMonitor.configure(
+                trackLength != null ? trackLength : ChoochooSpeedMonitor.DEFAULT_TRACK_LENGTH_INCHES,
+                sensorCount != null ? sensorCount : ChoochooSpeedMonitor.DEFAULT_SENSOR_COUNT,
+                speedLimit != null ? speedLimit : 0,
+                restrictedSpeed != null ? Integer.valueOf(restrictedSpeed) : null);
     }
 
-    private void createUpdateTrain(String locoId, JSONObject jTrainParms) {
+    public ChoochooSpeedMonitor getSpeedMonitor() {
+        return speedMonitor;
+    }
 
-        ReadWriteTransaction tx = dataBroker.newReadWriteTransaction();
+    private static InstanceIdentifier<Train> trainIid(String locoId) {
+        return InstanceIdentifier.create(TrainTopology.class).child(Train.class, new TrainKey(locoId));
+    }
 
-        InstanceIdentifier<Train> iid;
-        
-        iid = InstanceIdentifier.create(TrainTopology.class).child(Train.class, new TrainKey(locoId));
-        
-        Train train = new TrainBuilder()
+    private static Train buildTrain(String locoId, String controller, JSONObject jTrainParms) {
+        return new TrainBuilder()
                         .setLocoId(locoId)
                         .setKey(new TrainKey(locoId))
+                        .setTrainController(controller)
                        // .setParms(jTrainParms.toString())
                         //.setObdPids(input.getObdPids())
                         .build();
-
-        tx.merge(LogicalDatastoreType.OPERATIONAL, iid, train);
-        tx.submit();
-        LOG.info("write: OPERATIONAL train: {}", train);
-
     }
 
-    private void deleteTrain(String locoId) {
+    public ListenableFuture<Boolean> setSpeed(Integer speed) {
+        return controlLoco(trainDefaultLocoId, new ChoochooLocoCommand().setSpeed(speed));
+    }
+    public ListenableFuture<Boolean> setLight(boolean turnOn) {
+        return controlLoco(trainDefaultLocoId, new ChoochooLocoCommand().setLight(turnOn));
+    }
+    public ListenableFuture<Boolean> setHorn(boolean turnOn) {
+        return controlLoco(trainDefaultLocoId, new ChoochooLocoCommand().setHorn(turnOn));
+    }
 
-        ReadWriteTransaction tx = dataBroker.newReadWriteTransaction();
+    /**
+     * Apply horn, light and speed changes to a loco in a single POST.  Anything the loco is already known to be doing
+     * is left out, and if that leaves nothing to do no request is sent at all.
+     * @return set to whether the controller acknowledged the POST, or null if nothing needed to be sent
+     */
+    public ListenableFuture<Boolean> controlLoco(String locoId, ChoochooLocoCommand command) {
 
-        InstanceIdentifier<Train> iid;
+        if (locoId == null) {
+            return Futures.immediateFuture(false);
+        }
+        ChoochooLocoState state = locoStates.get(locoId);
+        if (state == null) {
+            ChoochooLocoState newState = new ChoochooLocoState();
+            state = locoStates.putIfAbsent(locoId, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+        final ChoochooLocoCommand delta = state.update(command);
+        if (delta.isEmpty()) {
+            statistics.commandSuppressed();
+            return null;
+        }
 
-        iid = InstanceIdentifier.create(TrainTopology.class).child(Train.class, new TrainKey(locoId));
+        final ChoochooLocoState sentState = state;
+        ListenableFuture<Boolean> result = sendControlCommandToServer(locoId, delta.toJsonString());
+        Futures.addCallback(result, new FutureCallback<Boolean>() {
+            @Override
+            public void onSuccess(Boolean acked) {
+                if (!acked) {
+                    sentState.reject(delta);
+                }
+            }
 
-        tx.delete(LogicalDatastoreType.OPERATIONAL, iid);
-        tx.submit();
+            @Override
+            public void onFailure(Throwable t) {
+                sentState.reject(delta);
+            }
+        });
+        return result;
     }
 
-    public void setSpeed(Integer speed) {
-        JSONObject jTrain = new JSONObject();
-        jTrain.put("speed", speed);
-        sendControlCommandToServer(trainDefaultLocoId, jTrain.toString());
+    /**
+     * @return the speed the loco was last told to go at, or null if not known
+     */
+    public Integer getLocoSpeed(String locoId) {
+        ChoochooLocoState state = locoStates.get(locoId);
+        return state != null ? state.getSpeed() : null;
     }
-    public void setLight(boolean turnOn) {
-        JSONObject jTrain = new JSONObject();
-        jTrain.put("headlight", turnOn ? "on" : "off");
-        sendControlCommandToServer(trainDefaultLocoId, jTrain.toString());
+
+    public String getDefaultLocoId() {
+        return trainDefaultLocoId;
     }
-    public void setHorn(boolean turnOn) {
-        JSONObject jTrain = new JSONObject();
-        jTrain.put("bell", turnOn ? "on" : "off");
-        sendControlCommandToServer(trainDefaultLocoId, jTrain.toString());
+
+    public ListenableFuture<Boolean> controlDefaultLoco(ChoochooLocoCommand command) {
+        return controlLoco(trainDefaultLocoId, command);
     }
-    
-    public void sendControlCommandToServer(String locoId, String content) {
 
-        LOG.info("sendControlCommandToServer: sending {} to train controller: {}", content, trainControllerIpaddress);
-        if (trainControllerIpaddress == null) {
-            return;
+    /**
+     * Queue a control command for the train controller.  The request is handed to the http client which sends it
+     * on a keep-alive connection to the controller; the caller is never blocked waiting for the arduino.  The
+     * returned future is set to true if the controller acknowledged the command with a 2xx, false otherwise.
+     */
+    public ListenableFuture<Boolean> sendControlCommandToServer(String locoId, final String content) {
+
+        String prefix = locoId != null ? locoUrlPrefixes.get(locoId) : null;
+        if (prefix == null) {
+            prefix = locoUrlPrefix;
+        }
+        LOG.info("sendControlCommandToServer: sending {} to {}", content, prefix);
+        if (prefix == null) {
+            return Futures.immediateFuture(false);
         }
 
-        ContentExchange httpRequest = new ContentExchange(true);
-        String url = "http://" + trainControllerIpaddress + "/loco/" + locoId;
-        httpRequest.setMethod("POST");
-        Integer cl = content != null ?  content.length() : 0;
-        httpRequest.setRequestHeader("Content-Length", cl.toString());
-        httpRequest.setRequestContentSource(new ByteArrayInputStream(content.getBytes()));
-        httpRequest.setRequestContentType("application/json");
-        LOG.info("sendControlCommandToServer: sending http request: {}", httpRequest.toString());
+        String url = prefix + locoId;
+        final SettableFuture<Boolean> result = SettableFuture.create();
+        final long startNanos = System.nanoTime();
+        Futures.addCallback(client.sendRequest(url, "POST", content), new FutureCallback<ContentExchange>() {
+            @Override
+            public void onSuccess(ContentExchange httpResponse) {
+                statistics.recordSince(ChoochooStatistics.Stage.HTTP_COMMAND, startNanos);
+                try {
+                    String responseContent = httpResponse.getResponseContent();
+                    int rsc = httpResponse.getResponseStatus();
+                    LOG.info("sendControlCommandToServer: responseStatus: {}, responseContent: {}",
+                            rsc, responseContent);
+                    if (rsc < 200 || rsc >= 300) {
+                        LOG.error("Cannot sendControlCommandToServer {} ...", content);
+                        result.set(false);
+                        return;
+                    }
+                    result.set(true);
+                } catch (UnsupportedEncodingException e) {
+                    LOG.error("get http content exception: {}", e.toString());
+                    result.set(false);
+                }
+            }
 
-        ContentExchange httpResponse = client.sendRequest(url, httpRequest);
-        try {
-            String responseContent = httpResponse.getResponseContent();
-            int rsc = httpResponse.getResponseStatus();
-            LOG.info("sendControlCommandToServer: responseStatus: {}, responseContent: {}",
-                    rsc, responseContent);
-            if (rsc < 200 || rsc >= 300) {
-                LOG.error("Cannot sendControlCommandToServer ...");
-                return;
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.error("Cannot sendControlCommandToServer {}: {}", content, t.toString());
+                result.set(false);
             }
-        } catch (UnsupportedEncodingException e) {
-            LOG.error("get http content exception: {}", e.toString());
-        }
+        });
+        return result;
     }
 
+    /**
+     * Rediscover the trains on the controllers now rather than at the next scheduled poll.
+     */
     public void getTrainsFromServer() {
-
-        if (trainControllerIpaddress == null) {
-            return;
-        }
-        ContentExchange httpRequest = new ContentExchange(true);
-        String url = "http://" + trainControllerIpaddress + "/locos";
-        httpRequest.setMethod("GET");
-        LOG.info("getTrainsFromServer: sending http request: {}", httpRequest.toString());
-
-        String jsonContent = client.handleRequest(url, httpRequest);
-        if (jsonContent == null) {
-            LOG.error("getTrainsFromServer: error retrieving trains from controller: {}", trainControllerIpaddress);
-        } else {
-            handleTrainInventory(jsonContent);
+        for (ChoochooTrainDiscovery discovery : discoveries.values()) {
+            discovery.discoverNow();
         }
     }
 
@@ -293,29 +465,21 @@ public class ChoochooTrainManager implements DataTreeChangeListener<TrainTopolog
         return null;
     }
 
-    private void handleTrainInventory(String trainJsonString) {
-
-        /**
-         * Put all datastore entries into HashSet then as each train is discovered from the network, take it
-         * out of the set.  Finally, any trains left in the set should be deleted as they are no longer
-         * discoverable.
-         */
+    /**
+     * @return completes once the inventory is in the data store, fails if it could not be parsed or committed
+     */
+    ListenableFuture<Void> handleTrainInventory(String controller, String trainJsonString) {
 
         /**
-         * Create the hashset, read trains from the datastore and add to set
+         * Put all the datastore entries for this controller into a map then as each train is discovered from the
+         * network, take it out of the map.  Finally, any trains left in the map should be deleted as they are no longer
+         * discoverable.  Only trains that are new, changed or gone are written, and they are all written in one
+         * transaction, so an unchanged inventory costs no datastore commit at all.
          */
-        HashSet<String> trainSet = new HashSet<String>();
-        TrainTopology trainTopology = readTrainTopology(LogicalDatastoreType.OPERATIONAL);
-        List<Train> trainList = trainTopology.getTrain();
-        for (Train train : trainList) {
-            trainSet.add(train.getLocoId());
-        }
-        LOG.info("handleTrainInventory: added {} trains to the hashSet", trainSet.size());
 
         /**
-         * Now handle the jsonString which was read in from the the train controller.  For each train in the json
-         * array, pull out the locoId, and trainParms and add to the data store, and remove the locoId from the
-         * hashSet.
+         * Parse the jsonString which was read in from the the train controller first, so a malformed inventory is
+         * thrown away whole rather than half applied.
          */
         JSONArray jTrainArray = null;
 
@@ -323,70 +487,320 @@ public class ChoochooTrainManager implements DataTreeChangeListener<TrainTopolog
             jTrainArray = new JSONArray(trainJsonString);
         } catch (JSONException e) {
             LOG.error("handleTrainInventory: issues parsing {}", e.toString());
-            return;
+            return Futures.immediateFailedFuture(e);
         }
+        Map<String, Train> reportedTrains = new LinkedHashMap<>();
         for (int i = 0; i < jTrainArray.length(); i++) {
             if (!(jTrainArray.get(i) instanceof JSONObject)) {
-                LOG.error("JSON object expected for json array instance i={}: " + i);
-                return;
+                LOG.error("handleTrainInventory: JSON object expected for json array instance i={}", i);
+                return Futures.immediateFailedFuture(
+                        new JSONException("JSON object expected for json array instance i=" + i));
             }
             JSONObject jTrain = (JSONObject) jTrainArray.get(i);
             String locoId = getLocoIdFromJsonObject(jTrain);
             if (locoId != null) {
-                LOG.info("handleTrainInventory: add/update train {}", locoId);
                 JSONObject jTrainParms = jTrain.optJSONObject("locoId");
-                createUpdateTrain(locoId, jTrainParms);
-                trainSet.remove(locoId);
+                reportedTrains.put(locoId, buildTrain(locoId, controller, jTrainParms));
+            }
+        }
+
+        /**
+         * Create the map, read this controller's trains from the datastore and add to map, and note who has the rest
+         */
+        Map<String, Train> trainMap = new HashMap<>();
+        Map<String, String> otherControllers = new HashMap<>();
+        for (Train train : trainCache.getTrains()) {
+            String trainController = controllerOf(train);
+            if (controller.equals(trainController)) {
+                trainMap.put(train.getLocoId(), train);
+            } else if (trainController != null) {
+                otherControllers.put(train.getLocoId(), trainController);
             }
         }
+        LOG.info("handleTrainInventory: {} trains from {} in the datastore", trainMap.size(), controller);
 
         /**
-         * Now for each entry in the remaining in the hash set ... delete
+         * For each reported train queue a write if it differs from the datastore, and remove the locoId from the map.
+         * A loco another controller has too stays with whichever was configured first.
          */
-        for (String locoId : trainSet) {
-            deleteTrain(locoId);
+        final Set<String> ownedLocoIds = new HashSet<>();
+        List<Train> changedTrains = new ArrayList<>();
+        for (Train train : reportedTrains.values()) {
+            String locoId = train.getLocoId();
+            String otherController = otherControllers.get(locoId);
+            if (otherController != null) {
+                if (isEarlier(otherController, controller)) {
+                    if (loggedConflicts.add(locoId + "@" + controller)) {
+                        LOG.warn("handleTrainInventory: loco {} is reported by {} and {}, keeping it on {}", locoId,
+                                otherController, controller, otherController);
+                    }
+                    continue;
+                }
+                LOG.warn("handleTrainInventory: loco {} is reported by {} and {}, moving it to {}", locoId,
+                        otherController, controller, controller);
+            }
+            ownedLocoIds.add(locoId);
+            if (!train.equals(trainMap.remove(locoId))) {
+                changedTrains.add(train);
+            }
+        }
+        final Set<String> removedLocoIds = new HashSet<>(trainMap.keySet());
+        final String prefix = locoUrlPrefix(controller);
+
+        if (changedTrains.isEmpty() && removedLocoIds.isEmpty()) {
+            LOG.info("handleTrainInventory: no changes");
+            // the datastore already agrees, but the routes may not, eg after a restart
+            updateRoutes(prefix, ownedLocoIds, removedLocoIds);
+            return Futures.immediateFuture(null);
+        }
+
+        /**
+         * Now write the changed trains, and delete each entry remaining in the map, in a single transaction
+         */
+        WriteTransaction tx = dataBroker.newWriteOnlyTransaction();
+        // harmless if the topology is already there
+        tx.merge(LogicalDatastoreType.OPERATIONAL, TRAIN_TOPOLOGY_IID,
+                new TrainTopologyBuilder().setTrain(Collections.<Train>emptyList()).build());
+        for (Train train : changedTrains) {
+            tx.put(LogicalDatastoreType.OPERATIONAL, trainIid(train.getLocoId()), train);
+            LOG.info("handleTrainInventory: add/update train {}", train.getLocoId());
+        }
+        for (String locoId : removedLocoIds) {
+            tx.delete(LogicalDatastoreType.OPERATIONAL, trainIid(locoId));
             LOG.info("handleTrainInventory: removing train {} as train controller does not have it anymore", locoId);
         }
+        ListenableFuture<Void> commit = tx.submit();
+        Futures.addCallback(commit, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                updateRoutes(prefix, ownedLocoIds, removedLocoIds);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.error("handleTrainInventory: failed to commit train inventory: {}", t.toString());
+            }
+        });
+        LOG.info("handleTrainInventory: wrote {} trains, deleted {} trains", changedTrains.size(),
+                removedLocoIds.size());
+        return commit;
     }
 
-    public ControlTrainOutput controlTrain(ControlTrainInput input) {
+    private void updateRoutes(String prefix, Set<String> ownedLocoIds, Set<String> removedLocoIds) {
+        for (String locoId : ownedLocoIds) {
+            locoUrlPrefixes.put(locoId, prefix);
+        }
+        for (String locoId : removedLocoIds) {
+            locoUrlPrefixes.remove(locoId, prefix);
+        }
+    }
 
-        ControlTrainOutput output = null;
+    /**
+     * Send the control parms to the loco one after the other.  The future completes with OK once the controller has
+     * acknowledged them all, or with FAILED as soon as one is not acknowledged or the command timeout expires.
+     * Nothing here waits for the controller, so the RPC does not hold on to the caller's thread.
+     */
+    public ListenableFuture<ControlTrainOutput> controlTrain(ControlTrainInput input) {
 
         String locoId = input.getLocoId();
         if (locoId == null) {
             LOG.error("controlTrain: invalid (null) locoId");
-            output = new ControlTrainOutputBuilder()
-                    .setStatus(ControlTrainOutput.Status.FAILED)
-                    .build();
-            return output;
+            return Futures.immediateFuture(controlTrainOutput(ControlTrainOutput.Status.FAILED));
+        }
+        if (trainCache.getTrain(locoId) == null) {
+            LOG.info("controlTrain: loco {} has not been discovered, sending anyway", locoId);
         }
 
-        List<ControlParm> cpList = input.getControlParm();
-        for (ControlParm cp : cpList) {
-            JSONObject jChooChoo = null;
-            try {
-                jChooChoo = new JSONObject(cp.getContentJsonString());
-            } catch (JSONException e) {
-                LOG.error("{}", e.toString());
+        List<ControlParm> cpList = input.getControlParm() != null ? input.getControlParm()
+                : Collections.<ControlParm>emptyList();
+        // arbitrary json, we can no longer vouch for the cached actuator state of this loco
+        locoStates.remove(locoId);
+
+        final SettableFuture<ControlTrainOutput> result = SettableFuture.create();
+        final String timedOutLocoId = locoId;
+        final ScheduledFuture<?> timeout = timeoutScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (result.set(controlTrainOutput(ControlTrainOutput.Status.FAILED))) {
+                    LOG.error("controlTrain: loco {} timed out after {}ms", timedOutLocoId, commandTimeoutMs);
+                }
+            }
+        }, commandTimeoutMs, TimeUnit.MILLISECONDS);
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel(false);
             }
-            sendControlCommandToServer(locoId, cp.getContentJsonString());
+        }, MoreExecutors.sameThreadExecutor());
+
+        sendControlParms(locoId, cpList, 0, result);
+        return result;
+    }
+
+    private void sendControlParms(final String locoId, final List<ControlParm> cpList, final int i,
+                                  final SettableFuture<ControlTrainOutput> result) {
+
+        if (result.isDone()) {
+            return;
         }
+        if (i == cpList.size()) {
+            result.set(controlTrainOutput(ControlTrainOutput.Status.OK));
+            return;
+        }
+        Futures.addCallback(sendControlCommandToServer(locoId, cpList.get(i).getContentJsonString()),
+                new FutureCallback<Boolean>() {
+                    @Override
+                    public void onSuccess(Boolean acked) {
+                        if (acked) {
+                            sendControlParms(locoId, cpList, i + 1, result);
+                        } else {
+                            result.set(controlTrainOutput(ControlTrainOutput.Status.FAILED));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        result.set(controlTrainOutput(ControlTrainOutput.Status.FAILED));
+                    }
+                });
+    }
 
-        output = new ControlTrainOutputBuilder()
-                .setStatus(ControlTrainOutput.Status.OK)
+    private static ControlTrainOutput controlTrainOutput(ControlTrainOutput.Status status) {
+        return new ControlTrainOutputBuilder()
+                .setStatus(status)
                 .build();
-        return output;
     }
 
+    /**
+     * Send the commands for many locos, at most maxConcurrency at a time.  A loco's control parms are merged into a
+     * single POST.  The future completes when every loco has its result, in the order they were given.
+     */
+    public ListenableFuture<ControlTrainsOutput> controlTrains(ControlTrainsInput input) {
+
+        final List<TrainCommand> commands = input.getTrainCommand() != null ? input.getTrainCommand()
+                : Collections.<TrainCommand>emptyList();
+        final SettableFuture<ControlTrainsOutput> result = SettableFuture.create();
+        if (commands.isEmpty()) {
+            result.set(new ControlTrainsOutputBuilder().setTrainResult(Collections.<TrainResult>emptyList()).build());
+            return result;
+        }
+        int maxConcurrency = input.getMaxConcurrency() != null ? input.getMaxConcurrency() : DEFAULT_MAX_CONCURRENCY;
+
+        final AtomicReferenceArray<TrainResult> results = new AtomicReferenceArray<>(commands.size());
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger remaining = new AtomicInteger(commands.size());
+        // each worker sends one command at a time, taking the next one when the response is in; commands that
+        // complete straight away are handled in the loop rather than by recursing from their callback
+        final class Worker implements Runnable {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < commands.size()) {
+                    final int index = i;
+                    final long startNanos = System.nanoTime();
+                    ListenableFuture<Boolean> ack = sendTrainCommand(commands.get(index));
+                    if (ack.isDone()) {
+                        done(index, startNanos, Futures.getUnchecked(ack));
+                        continue;
+                    }
+                    Futures.addCallback(ack, new FutureCallback<Boolean>() {
+                        @Override
+                        public void onSuccess(Boolean acked) {
+                            done(index, startNanos, acked);
+                            run();
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            done(index, startNanos, false);
+                            run();
+                        }
+                    });
+                    return;
+                }
+            }
+
+            private void done(int index, long startNanos, boolean acked) {
+                results.set(index, new TrainResultBuilder()
+                        .setLocoId(commands.get(index).getLocoId())
+                        .setStatus(acked ? TrainResult.Status.OK : TrainResult.Status.FAILED)
+                        .setLatencyUs(BigInteger.valueOf(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos)))
+                        .build());
+                if (remaining.decrementAndGet() == 0) {
+                    List<TrainResult> trainResults = new ArrayList<>(results.length());
+                    for (int r = 0; r < results.length(); r++) {
+                        trainResults.add(results.get(r));
+                    }
+                    result.set(new ControlTrainsOutputBuilder().setTrainResult(trainResults).build());
+                }
+            }
+        }
+        for (int w = 0; w < Math.min(maxConcurrency, commands.size()); w++) {
+            new Worker().run();
+        }
+        return result;
+    }
+
+    private ListenableFuture<Boolean> sendTrainCommand(TrainCommand command) {
+
+        String locoId = command.getLocoId();
+        if (locoId == null) {
+            return Futures.immediateFuture(false);
+        }
+        JSONObject merged = new JSONObject();
+        if (command.getControlParm() != null) {
+            for (ControlParm cp : command.getControlParm()) {
+                try {
+                    JSONObject jChooChoo = new JSONObject(cp.getContentJsonString());
+                    Iterator<?> keys = jChooChoo.keys();
+                    while (keys.hasNext()) {
+                        String key = (String) keys.next();
+                        merged.put(key, jChooChoo.get(key));
+                    }
+                } catch (JSONException | NullPointerException e) {
+                    LOG.error("controlTrains: bad control parm {} for loco {}: {}", cp.getName(), locoId,
+                            e.toString());
+                    return Futures.immediateFuture(false);
+                }
+            }
+        }
+        if (merged.length() == 0) {
+            return Futures.immediateFuture(false);
+        }
+        // arbitrary json, we can no longer vouch for the cached actuator state of this loco
+        locoStates.remove(locoId);
+        return sendControlCommandToServer(locoId, merged.toString());
+    }
+
+    /**
+     * Asynchronous client for the arduino train controllers.  Requests are queued per controller address by jetty and
+     * sent over a small number of persistent (keep-alive) connections, so commands for the same controller are
+     * pipelined back to back without a new TCP setup, and a slow controller only delays its own queue.  Completion
+     * is reported through a ListenableFuture rather than by blocking the calling thread.
+     */
     public class ChooChooHttpClient {
 
         private final Logger LOG = LoggerFactory.getLogger(ChooChooHttpClient.class);
 
+        // the arduino ethernet shield only has a handful of sockets, so keep a couple open and queue the rest
+        private static final int MAX_CONNECTIONS_PER_CONTROLLER = 2;
+        private static final int MAX_QUEUED_REQUESTS_PER_CONTROLLER = 256;
+        private static final int CONNECT_TIMEOUT_MS = 2000;
+        // a pooled connection with nothing to do for this long is closed, so is one stuck waiting for a response
+        private static final long IDLE_TIMEOUT_MS = 30000;
+        // from being queued to the whole response being read
+        private static final long REQUEST_TIMEOUT_MS = 5000;
+
         private HttpClient httpClient;
 
         public ChooChooHttpClient() {
             httpClient = new HttpClient();
+            httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+            httpClient.setMaxConnectionsPerAddress(MAX_CONNECTIONS_PER_CONTROLLER);
+            httpClient.setMaxQueueSizePerAddress(MAX_QUEUED_REQUESTS_PER_CONTROLLER);
+            httpClient.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            httpClient.setIdleTimeout(IDLE_TIMEOUT_MS);
+            httpClient.setTimeout(REQUEST_TIMEOUT_MS);
             try {
                 httpClient.start();
             } catch (Exception e) {
@@ -394,47 +808,100 @@ public class ChoochooTrainManager implements DataTreeChangeListener<TrainTopolog
             }
         }
 
-        public ContentExchange sendRequest(String url, ContentExchange httpRequest) {
+        /**
+         * Send a request to the controller without waiting for the response.  The future completes with the exchange
+         * once the response has been read, or fails if the connection could not be made, the exchange raised an
+         * exception, or it expired.  Every request is counted against its controller's address in the statistics.
+         */
+        public ListenableFuture<ContentExchange> sendRequest(String url, String method, String content) {
+            return sendRequest(url, method, content, Collections.<String, String>emptyMap());
+        }
 
+        public ListenableFuture<ContentExchange> sendRequest(String url, String method, String content,
+                                                             Map<String, String> headers) {
+
+            ChooChooExchange httpRequest = new ChooChooExchange();
             httpRequest.setURL(url);
+            httpRequest.setMethod(method);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                httpRequest.setRequestHeader(header.getKey(), header.getValue());
+            }
+            if (content != null) {
+                byte[] body = content.getBytes(StandardCharsets.UTF_8);
+                httpRequest.setRequestHeader("Content-Length", Integer.toString(body.length));
+                httpRequest.setRequestContentSource(new ByteArrayInputStream(body));
+                httpRequest.setRequestContentType("application/json");
+            }
+            final ChooChooExchange exchange = httpRequest;
+            final String address = String.valueOf(httpRequest.getAddress());
+            final long startNanos = System.nanoTime();
+            Futures.addCallback(httpRequest.future, new FutureCallback<ContentExchange>() {
+                @Override
+                public void onSuccess(ContentExchange response) {
+                    statistics.controllerResponded(address, response.getResponseStatus(), startNanos);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    ChoochooStatistics.ControllerFailure failure = ChoochooStatistics.ControllerFailure.OTHER;
+                    if (exchange.connectFailed) {
+                        failure = ChoochooStatistics.ControllerFailure.CONNECT;
+                    } else if (t instanceof TimeoutException) {
+                        failure = ChoochooStatistics.ControllerFailure.TIMEOUT;
+                    }
+                    statistics.controllerFailed(address, failure);
+                }
+            });
             try {
                 httpClient.send(httpRequest);
-            } catch (IOException e) {
+            } catch (IOException | RuntimeException e) {
+                // jetty rejects the exchange with a RuntimeException when the controller's queue is full
                 LOG.error("Issues with httpClient.send: {}", e.toString());
+                httpRequest.future.setException(e);
             }
-            int ex = HttpExchange.STATUS_EXCEPTED;
-            // Waits until the exchange is terminated
-            try {
-                ex = httpRequest.waitForDone();
-            } catch (InterruptedException e) {
-                LOG.error("Issues with waitForDone: {}", e.toString());
-            }
-            return httpRequest;
+            return httpRequest.future;
         }
 
-        public String handleRequest(String url, ContentExchange httpRequest) {
+        public void stop() throws Exception {
+            httpClient.stop();
+        }
+    }
 
-            ContentExchange httpResponse = sendRequest(url, httpRequest);
+    /**
+     * A ContentExchange that completes a future from jetty's callbacks instead of being polled with waitForDone().
+     */
+    private static class ChooChooExchange extends ContentExchange {
 
-            try {
-                String responseContent = httpResponse.getResponseContent();
-                int rsc = httpResponse.getResponseStatus();
-                LOG.info("handleRequest: responseStatus: {}, responseContent: {}", rsc, responseContent);
-                if (rsc < 200 || rsc >= 300) {
-                    LOG.error("handleRequest: httpStatusCode: {} ...", rsc);
-                    return null;
-                }
-                LOG.info("handleRequest:content: {}", responseContent);
-                return responseContent;
-            } catch (UnsupportedEncodingException e) {
-                LOG.error("get http content exception: {}", e.toString());
-            }
+        private final SettableFuture<ContentExchange> future = SettableFuture.create();
+        private volatile boolean connectFailed;
 
-            return null;
+        ChooChooExchange() {
+            super(true);
         }
 
-        public void stop() throws Exception {
-            httpClient.stop();
+        @Override
+        protected void onResponseComplete() throws IOException {
+            super.onResponseComplete();
+            future.set(this);
+        }
+
+        @Override
+        protected void onConnectionFailed(Throwable x) {
+            connectFailed = true;
+            super.onConnectionFailed(x);
+            future.setException(x);
+        }
+
+        @Override
+        protected void onException(Throwable x) {
+            super.onException(x);
+            future.setException(x);
+        }
+
+        @Override
+        protected void onExpire() {
+            super.onExpire();
+            future.setException(new TimeoutException("request to " + getAddress() + " expired"));
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015 Cisco Systems and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.cisco.devnetlabs.choochoo.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChoochooIngestQueueTest {
+
+    @Test
+    public void testBounded() {
+        ChoochooIngestQueue<Integer> queue = new ChoochooIngestQueue<>(3);
+        assertEquals(4, queue.capacity());
+        assertNull(queue.poll());
+
+        // round the ring a few times
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(queue.offer(lap * 10 + i));
+            }
+            assertFalse(queue.offer(-1));
+            assertEquals(4, queue.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Integer.valueOf(lap * 10 + i), queue.poll());
+            }
+            assertNull(queue.poll());
+            assertEquals(0, queue.size());
+        }
+    }
+
+    @Test
+    public void testProducersAndConsumer() throws Exception {
+        final ChoochooIngestQueue<Integer> queue = new ChoochooIngestQueue<>(64);
+        final int perProducer = 100000;
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            final int producer = p;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!queue.offer(producer * perProducer + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            producers[p].start();
+        }
+
+        // every element comes out once, and each producer's in the order it went in
+        int[] next = new int[producers.length];
+        for (int received = 0; received < producers.length * perProducer; ) {
+            Integer element = queue.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            int producer = element / perProducer;
+            assertEquals(next[producer]++, element % perProducer);
+            received++;
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertNull(queue.poll());
+    }
+}
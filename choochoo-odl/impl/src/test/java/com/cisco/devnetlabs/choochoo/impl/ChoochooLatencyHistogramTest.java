@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2015 Cisco Systems and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.cisco.devnetlabs.choochoo.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChoochooLatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverTheirValues() {
+        for (long micros : new long[] {0, 1, 15, 16, 17, 100, 1000, 123456789L, Long.MAX_VALUE}) {
+            int bucket = ChoochooLatencyHistogram.bucketOf(micros);
+            assertTrue(micros <= ChoochooLatencyHistogram.upperBoundOf(bucket));
+            assertTrue(bucket == 0 || micros > ChoochooLatencyHistogram.upperBoundOf(bucket - 1));
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        ChoochooLatencyHistogram histogram = new ChoochooLatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.125);
+        assertEquals(1000, histogram.getPercentile(99.9));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+}
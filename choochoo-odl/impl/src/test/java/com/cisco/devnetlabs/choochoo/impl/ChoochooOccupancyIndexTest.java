@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015 Cisco Systems and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ChoochooOccupancyIndexTest {
+
+    private static final String TRACK = "devnet/track1";
+
+    private static void assertOccupant(ChoochooOccupancyIndex index, String track, int blockId, String locoId) {
+        List<ChoochooOccupancyIndex.Occupant> occupants = index.getOccupants(track);
+        assertEquals(1, occupants.size());
+        assertEquals(blockId, occupants.get(0).getBlockId());
+        assertEquals(locoId, occupants.get(0).getLocoId());
+    }
+
+    @Test
+    public void testEmptyTrackTakesDefaultLoco() {
+        ChoochooOccupancyIndex index = new ChoochooOccupancyIndex();
+        assertNull(index.sensorTripped(TRACK, 1, null));
+        assertEquals(0, index.getOccupants(TRACK).size());
+
+        assertEquals("7", index.sensorTripped(TRACK, 1, "7"));
+        assertOccupant(index, TRACK, 1, "7");
+        // the same block again is the same loco, whatever the default
+        assertEquals("7", index.sensorTripped(TRACK, 1, "8"));
+        assertOccupant(index, TRACK, 1, "7");
+    }
+
+    @Test
+    public void testLocoBehindMovesUpAndLeavesItsBlock() {
+        ChoochooOccupancyIndex index = new ChoochooOccupancyIndex();
+        index.sensorTripped(TRACK, 1, "7");
+        assertEquals("7", index.sensorTripped(TRACK, 2, "8"));
+        assertOccupant(index, TRACK, 2, "7");
+        // skipping a block whose sensor was missed still finds it
+        assertEquals("7", index.sensorTripped(TRACK, 4, "8"));
+        assertOccupant(index, TRACK, 4, "7");
+    }
+
+    @Test
+    public void testWrapsRoundTheLoop() {
+        ChoochooOccupancyIndex index = new ChoochooOccupancyIndex();
+        index.sensorTripped(TRACK, 1, "7");
+        index.sensorTripped(TRACK, 2, null);
+        index.sensorTripped(TRACK, 3, null);
+        index.sensorTripped(TRACK, 4, null);
+        // block 1 is behind block 4's loco once it has gone round
+        assertEquals("7", index.sensorTripped(TRACK, 1, "8"));
+        assertOccupant(index, TRACK, 1, "7");
+    }
+
+    @Test
+    public void testTracksAreSeparate() {
+        ChoochooOccupancyIndex index = new ChoochooOccupancyIndex();
+        index.sensorTripped(TRACK, 1, "7");
+        assertEquals("8", index.sensorTripped("devnet/track2", 2, "8"));
+        assertOccupant(index, TRACK, 1, "7");
+        assertOccupant(index, "devnet/track2", 2, "8");
+        assertEquals(2, index.getOccupants(null).size());
+
+        // out of range blocks are not tracked
+        assertEquals("9", index.sensorTripped(TRACK, 0, "9"));
+        assertEquals(2, index.getOccupants(null).size());
+
+        index.clear();
+        assertEquals(0, index.getOccupants(null).size());
+    }
+}
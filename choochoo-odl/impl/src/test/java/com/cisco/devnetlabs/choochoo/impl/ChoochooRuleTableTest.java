@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2015 Cisco Systems and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ChoochooRuleTableTest {
+
+    @Test
+    public void testDefaultRules() {
+        ChoochooRuleTable table = ChoochooRuleTable.DEFAULT;
+        assertEquals(Boolean.TRUE, table.match(1, "1", 0, -1).getCommand().getLight());
+        assertEquals(Boolean.TRUE, table.match(12, "1", 0, -1).getCommand().getHorn());
+    }
+
+    @Test
+    public void testFirstMatchingRuleFires() {
+        ChoochooRuleTable.CompiledRule fast = new ChoochooRuleTable.CompiledRule("fast", null, 60, Double.MAX_VALUE,
+                0, Long.MAX_VALUE, new ChoochooLocoCommand().setSpeed(10));
+        ChoochooRuleTable.CompiledRule loco2 = new ChoochooRuleTable.CompiledRule("loco2", "2", 0, Double.MAX_VALUE,
+                TimeUnit.SECONDS.toNanos(1), TimeUnit.SECONDS.toNanos(5), new ChoochooLocoCommand().setHorn(true));
+        ChoochooRuleTable table = new ChoochooRuleTable.Builder().add(3, fast).add(3, loco2).build();
+
+        assertEquals("fast", table.match(3, "2", 70, TimeUnit.SECONDS.toNanos(2)).getName());
+        assertEquals("loco2", table.match(3, "2", 50, TimeUnit.SECONDS.toNanos(2)).getName());
+        assertNull(table.match(3, "2", 50, -1));
+        assertNull(table.match(3, "1", 50, TimeUnit.SECONDS.toNanos(2)));
+        assertNull(table.match(4, "2", 70, TimeUnit.SECONDS.toNanos(2)));
+        assertNull(table.match(300, "2", 70, TimeUnit.SECONDS.toNanos(2)));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2015 Cisco Systems and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChoochooSensorDecoderTest {
+
+    private static boolean decode(String payload, ChoochooSensorFrame frame) {
+        return ChoochooSensorDecoder.decode(payload.getBytes(StandardCharsets.UTF_8), frame);
+    }
+
+    @Test
+    public void testDecodeNumbers() {
+        ChoochooSensorFrame frame = new ChoochooSensorFrame();
+        assertTrue(decode("{\"block\":2,\"pos\":1}", frame));
+        assertEquals(2, frame.getBlockId());
+        assertEquals(1, frame.getPosId());
+    }
+
+    @Test
+    public void testDecodeStringsAndOtherMembers() {
+        ChoochooSensorFrame frame = new ChoochooSensorFrame();
+        assertTrue(decode(" { \"pos\" : \"3\", \"x\":[1,{\"a\":\"}\"}], \"block\":\"4\", \"t\":true } ", frame));
+        assertEquals(4, frame.getBlockId());
+        assertEquals(3, frame.getPosId());
+    }
+
+    @Test
+    public void testRejectMalformed() {
+        ChoochooSensorFrame frame = new ChoochooSensorFrame();
+        assertFalse(decode("", frame));
+        assertFalse(decode("{}", frame));
+        assertFalse(decode("{\"block\":2}", frame));
+        assertFalse(decode("{\"block\":2,\"pos\":1.5}", frame));
+        assertFalse(decode("{\"block\":-1,\"pos\":1}", frame));
+        assertFalse(decode("{\"block\":2,\"pos\":1", frame));
+        assertFalse(decode("{\"block\":2,\"pos\":1}x", frame));
+        assertFalse(decode("{\"block\":99999999999,\"pos\":1}", frame));
+        assertFalse(decode("[1]", frame));
+    }
+
+    @Test
+    public void testDecodeBinary() {
+        ChoochooSensorFrame frame = new ChoochooSensorFrame();
+        assertTrue(decode("{\"block\":2,\"pos\":1}", frame));
+        assertEquals(ChoochooSensorFrame.NONE, frame.getSequence());
+
+        assertTrue(ChoochooSensorDecoder.decode(ChoochooSensorDecoder.encodeBinary(300, 2, 0xfffffffeL, 123456L),
+                frame));
+        assertEquals(300, frame.getBlockId());
+        assertEquals(2, frame.getPosId());
+        assertEquals(0xfffffffeL, frame.getSequence());
+        assertEquals(123456L, frame.getDeviceTimestamp());
+
+        // json again, the binary frame's extras must not stick
+        assertTrue(decode("{\"block\":2,\"pos\":1}", frame));
+        assertEquals(ChoochooSensorFrame.NONE, frame.getDeviceTimestamp());
+    }
+
+    @Test
+    public void testRejectMalformedBinary() {
+        ChoochooSensorFrame frame = new ChoochooSensorFrame();
+        byte[] payload = ChoochooSensorDecoder.encodeBinary(2, 1, 1, 1);
+        assertFalse(ChoochooSensorDecoder.decode(Arrays.copyOf(payload, payload.length - 1), frame));
+        assertFalse(ChoochooSensorDecoder.decode(Arrays.copyOf(payload, payload.length + 1), frame));
+        payload[1] = 2;
+        assertFalse(ChoochooSensorDecoder.decode(payload, frame));
+    }
+}
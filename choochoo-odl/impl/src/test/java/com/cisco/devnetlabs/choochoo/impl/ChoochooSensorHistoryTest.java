@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2015 Cisco Systems and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.io.File;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChoochooSensorHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRingKeepsTheLatestEvents() throws Exception {
+        File path = new File(folder.getRoot(), "history.ring");
+        ChoochooSensorHistory history = ChoochooSensorHistory.open(path, 8);
+        for (int i = 0; i < 20; i++) {
+            history.append(1000 + i * 10, i % 12 + 1, i % 2 == 0 ? "3" : null);
+        }
+
+        List<ChoochooSensorHistory.Event> events = history.query(Long.MIN_VALUE, Long.MAX_VALUE, null, null, 100);
+        assertEquals(8, events.size());
+        assertEquals(12, events.get(0).getSequence());
+        assertEquals(1120, events.get(0).getTimestamp());
+        assertEquals(1, events.get(0).getSensorId());
+        assertEquals("3", events.get(0).getLocoId());
+        assertNull(events.get(1).getLocoId());
+
+        assertEquals(3, history.query(1145, 1170, null, null, 100).size());
+        assertEquals(4, history.query(0, Long.MAX_VALUE, null, "3", 100).size());
+        assertEquals(1, history.query(0, Long.MAX_VALUE, 8, null, 100).size());
+        assertEquals(2, history.query(0, Long.MAX_VALUE, null, null, 2).size());
+        history.close();
+
+        history = ChoochooSensorHistory.open(path, 8);
+        assertEquals(12, history.query(0, Long.MAX_VALUE, null, null, 100).get(0).getSequence());
+        // carries on after the last record, with its timestamp as the floor
+        history.append(0, 1, null);
+        events = history.query(0, Long.MAX_VALUE, null, null, 100);
+        assertEquals(20, events.get(7).getSequence());
+        assertEquals(1190, events.get(7).getTimestamp());
+        history.close();
+    }
+
+    @Test
+    public void testClockSteppingBack() throws Exception {
+        ChoochooSensorHistory history = ChoochooSensorHistory.open(new File(folder.getRoot(), "history.ring"), 8);
+        history.append(1000, 1, null);
+        history.append(2000, 2, null);
+        history.append(1500, 3, null);
+        history.append(2500, 4, null);
+
+        List<ChoochooSensorHistory.Event> events = history.query(1900, 2000, null, null, 100);
+        assertEquals(2, events.size());
+        assertEquals(2, events.get(0).getSensorId());
+        assertEquals(3, events.get(1).getSensorId());
+        assertEquals(2000, events.get(1).getTimestamp());
+        history.close();
+    }
+
+    @Test
+    public void testConcurrentAppendsAndQueries() throws Exception {
+        final ChoochooSensorHistory history =
+                ChoochooSensorHistory.open(new File(folder.getRoot(), "history.ring"), 64);
+        final int perWriter = 20000;
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            writers[w] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perWriter; i++) {
+                        // the loco id says which sensor, so a torn record shows
+                        int sensorId = i % 200 + 1;
+                        history.append(i, sensorId, String.valueOf(sensorId));
+                    }
+                }
+            };
+            writers[w].start();
+        }
+
+        boolean writing = true;
+        while (writing) {
+            writing = false;
+            for (Thread writer : writers) {
+                writing |= writer.isAlive();
+            }
+            long previous = Long.MIN_VALUE;
+            for (ChoochooSensorHistory.Event event : history.query(Long.MIN_VALUE, Long.MAX_VALUE, null, null, 100)) {
+                assertEquals(String.valueOf(event.getSensorId()), event.getLocoId());
+                assertTrue(event.getTimestamp() >= previous);
+                previous = event.getTimestamp();
+            }
+        }
+        assertEquals(64, history.query(Long.MIN_VALUE, Long.MAX_VALUE, null, null, 100).size());
+        assertEquals(writers.length * perWriter - 1,
+                history.query(Long.MIN_VALUE, Long.MAX_VALUE, null, null, 100).get(63).getSequence());
+        history.close();
+    }
+}
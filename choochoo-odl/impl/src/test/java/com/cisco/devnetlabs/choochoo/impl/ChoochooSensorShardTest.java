@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2015 Cisco Systems and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChoochooSensorShardTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testDebouncePerSensor() {
+        ChoochooSensorShard shard = new ChoochooSensorShard("choochoo/sensors");
+        shard.setDebounceRule(new ChoochooDebounceRule("#", 1000, 2), 0);
+        long t0 = -5000 * MS;
+
+        assertEquals(1, shard.accept(1, 1, t0));
+        assertEquals(ChoochooSensorShard.NO_SENSOR, shard.accept(1, 0, t0));
+        assertEquals(1, shard.accept(1, 1, t0 + MS));
+        assertEquals(ChoochooSensorShard.NO_SENSOR, shard.accept(1, 0, t0 + MS));
+        // burst of 2 used up for sensor 1, but not for sensor 4
+        assertEquals(ChoochooSensorShard.NO_SENSOR, shard.accept(1, 1, t0 + 2 * MS));
+        assertEquals(4, shard.accept(2, 1, t0 + 3 * MS));
+        assertEquals(1, shard.accept(1, 1, t0 + 1001 * MS));
+    }
+
+    @Test
+    public void testTopicMatches() {
+        assertTrue(ChoochooDebounceRule.topicMatches("#", "a/b"));
+        assertTrue(ChoochooDebounceRule.topicMatches("a/#", "a"));
+        assertTrue(ChoochooDebounceRule.topicMatches("a/+/c", "a/x/c"));
+        assertFalse(ChoochooDebounceRule.topicMatches("a/+", "a/b/c"));
+        assertFalse(ChoochooDebounceRule.topicMatches("a/b", "a/bc"));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015 Cisco Systems and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.cisco.devnetlabs.choochoo.impl;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChoochooSpeedMonitorTest {
+
+    // 100 inches between sensors
+    private static final long TRACK_LENGTH_INCHES = 1200;
+    private static final int SENSOR_COUNT = 12;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testVelocity() {
+        ChoochooSpeedMonitor monitor = new ChoochooSpeedMonitor(mock(ChoochooTrainManager.class));
+        monitor.configure(TRACK_LENGTH_INCHES, SENSOR_COUNT, 0, null);
+        assertNull(monitor.getMotion("1"));
+
+        // nanoTime can be 0, it is still a crossing
+        monitor.sensorTripped("1", 11, 0);
+        assertEquals(-1, monitor.getMotion("1").getIntervalNanos());
+
+        // round the end of the loop, 3 sensors in 2 seconds
+        monitor.sensorTripped("1", 2, 2 * SECOND);
+        assertEquals(150, monitor.getMotion("1").getVelocity(), 0.001);
+        assertEquals(2 * SECOND, monitor.getMotion("1").getIntervalNanos());
+
+        monitor.sensorTripped("1", 3, 3 * SECOND);
+        assertEquals(100, monitor.getMotion("1").getVelocity(), 0.001);
+        assertEquals(-50, monitor.getMotion("1").getAcceleration(), 0.001);
+
+        // the same sensor again is ignored
+        monitor.sensorTripped("1", 3, 4 * SECOND);
+        assertEquals(SECOND, monitor.getMotion("1").getIntervalNanos());
+    }
+
+    @Test
+    public void testUnderLimitIsLeftAlone() {
+        ChoochooTrainManager trainManager = mock(ChoochooTrainManager.class);
+        when(trainManager.getLocoSpeed("1")).thenReturn(40);
+        ChoochooSpeedMonitor monitor = new ChoochooSpeedMonitor(trainManager);
+        monitor.configure(TRACK_LENGTH_INCHES, SENSOR_COUNT, 150, null);
+
+        assertNull(monitor.sensorTripped("1", 1, SECOND));
+        assertNull(monitor.sensorTripped("1", 2, 2 * SECOND));
+        // the correction is returned, not sent
+        verify(trainManager, never()).controlLoco(anyString(), any(ChoochooLocoCommand.class));
+    }
+
+    @Test
+    public void testCorrectionIsNotStacked() {
+        ChoochooTrainManager trainManager = mock(ChoochooTrainManager.class);
+        when(trainManager.getLocoSpeed("1")).thenReturn(40);
+        ChoochooSpeedMonitor monitor = new ChoochooSpeedMonitor(trainManager);
+        monitor.configure(TRACK_LENGTH_INCHES, SENSOR_COUNT, 50, null);
+
+        // 100in/s against a 50in/s limit, so half the speed
+        assertNull(monitor.sensorTripped("1", 1, SECOND));
+        ChoochooLocoCommand correction = monitor.sensorTripped("1", 2, 2 * SECOND);
+        assertEquals(Integer.valueOf(20), correction.getSpeed());
+        assertNull(correction.getHorn());
+        assertNull(correction.getLight());
+
+        // this stretch started at the correction, before the loco could have slowed down
+        assertNull(monitor.sensorTripped("1", 3, 3 * SECOND));
+
+        // but this one was timed after it
+        assertEquals(Integer.valueOf(20), monitor.sensorTripped("1", 4, 4 * SECOND).getSpeed());
+    }
+
+    @Test
+    public void testRestrictedSpeedWhenSpeedUnknown() {
+        ChoochooTrainManager trainManager = mock(ChoochooTrainManager.class);
+        ChoochooSpeedMonitor monitor = new ChoochooSpeedMonitor(trainManager);
+
+        // no restricted speed, nothing to set it to
+        monitor.configure(TRACK_LENGTH_INCHES, SENSOR_COUNT, 50, null);
+        monitor.sensorTripped("1", 1, SECOND);
+        assertNull(monitor.sensorTripped("1", 2, 2 * SECOND));
+
+        monitor.configure(TRACK_LENGTH_INCHES, SENSOR_COUNT, 50, 5);
+        monitor.sensorTripped("1", 1, SECOND);
+        assertEquals(Integer.valueOf(5), monitor.sensorTripped("1", 2, 2 * SECOND).getSpeed());
+    }
+
+    @Test
+    public void testMergeTakesTheOtherCommandsFields() {
+        ChoochooLocoCommand rule = new ChoochooLocoCommand().setHorn(true).setSpeed(40);
+        ChoochooLocoCommand merged = rule.merge(new ChoochooLocoCommand().setSpeed(20));
+        assertEquals("{\"bell\":\"on\",\"speed\":20}", merged.toJsonString());
+        // neither is changed
+        assertEquals(Integer.valueOf(40), rule.getSpeed());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015 Cisco Systems and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.cisco.devnetlabs.choochoo.impl;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.opendaylight.controller.md.sal.binding.api.DataBroker;
+import org.opendaylight.controller.md.sal.binding.api.ReadOnlyTransaction;
+import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
+import org.opendaylight.controller.md.sal.common.api.data.ReadFailedException;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainTopology;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.TrainTopologyBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.Train;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.TrainBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.choochoo.rev150105.train.topology.TrainKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ChoochooTrainCacheTest {
+
+    private static final InstanceIdentifier<TrainTopology> TOPOLOGY_IID =
+            InstanceIdentifier.create(TrainTopology.class);
+
+    /**
+     * A data store holding trains 1 ... trainCount
+     */
+    private static DataBroker dataStore(int trainCount) {
+        ReadOnlyTransaction tx = mock(ReadOnlyTransaction.class);
+        List<Train> trainList = new ArrayList<>();
+        for (int i = 1; i <= trainCount; i++) {
+            String locoId = String.valueOf(i);
+            Train train = new TrainBuilder().setLocoId(locoId).setKey(new TrainKey(locoId)).build();
+            trainList.add(train);
+            when(tx.read(LogicalDatastoreType.OPERATIONAL, TOPOLOGY_IID.child(Train.class, new TrainKey(locoId))))
+                    .thenReturn(Futures.<Optional<Train>, ReadFailedException>immediateCheckedFuture(
+                            Optional.of(train)));
+        }
+        when(tx.read(LogicalDatastoreType.OPERATIONAL, TOPOLOGY_IID.child(Train.class, new TrainKey("missing"))))
+                .thenReturn(Futures.<Optional<Train>, ReadFailedException>immediateCheckedFuture(
+                        Optional.<Train>absent()));
+        when(tx.read(LogicalDatastoreType.OPERATIONAL, TOPOLOGY_IID))
+                .thenReturn(Futures.<Optional<TrainTopology>, ReadFailedException>immediateCheckedFuture(
+                        Optional.of(new TrainTopologyBuilder().setTrain(trainList).build())));
+        DataBroker dataBroker = mock(DataBroker.class);
+        when(dataBroker.newReadOnlyTransaction()).thenReturn(tx);
+        return dataBroker;
+    }
+
+    @Test
+    public void testServedFromMemoryWhenEverythingFits() {
+        DataBroker dataBroker = dataStore(10);
+        ChoochooTrainCache cache = new ChoochooTrainCache(dataBroker, 1000);
+        assertEquals(10, cache.getTrains().size());
+
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(String.valueOf(i), cache.getTrain(String.valueOf(i)).getLocoId());
+        }
+        assertNull(cache.getTrain("missing"));
+        assertEquals(10, cache.getTrains().size());
+        // only the first inventory went to the data store
+        verify(dataBroker, times(1)).newReadOnlyTransaction();
+        assertEquals(0, cache.getEvictions());
+    }
+
+    private static void assertFallsBackToDataStore(int trainCount, long maximumSize) {
+        ChoochooTrainCache cache = new ChoochooTrainCache(dataStore(trainCount), maximumSize);
+        assertEquals(trainCount, cache.getTrains().size());
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(trainCount - cache.getSize(), cache.getEvictions());
+
+        for (int i = 1; i <= trainCount; i++) {
+            assertEquals(String.valueOf(i), cache.getTrain(String.valueOf(i)).getLocoId());
+        }
+        assertNull(cache.getTrain("missing"));
+        // and the whole inventory is read again rather than served from what is left
+        long misses = cache.getMisses();
+        assertEquals(trainCount, cache.getTrains().size());
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void testReadsFallBackToDataStoreOnceTrainsAreEvicted() {
+        assertFallsBackToDataStore(20, 10);
+        // the limit is shared out between the cache's segments, so some go before it is reached
+        assertFallsBackToDataStore(20, 20);
+    }
+}